@@ -31,6 +31,7 @@ package com.forgenz.horses;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import org.bukkit.ChatColor;
@@ -138,6 +139,7 @@ public class Horses extends ForgePlugin
 			// Setup the database
 			database = config.databaseType.create(this, true);
 			database.importHorses(config.importDatabaseType);
+			database.open();
 			
 			// Setup commands
 			commandHandler = new ForgeCommandHandler(this);
@@ -220,9 +222,17 @@ public class Horses extends ForgePlugin
 		unregisterListeners();
 		
 		if (database != null)
+		{
 			database.saveAll();
+			database.close();
+		}
 		if (horseDismissTask != null)
+		{
 			horseDismissTask.cancel();
+			
+			if (horseDismissTask.getScans() > 0)
+				info("Horse dismiss task: %d scans, %d horses checked, %d dismissed, %dus average scan, %dus longest scan", horseDismissTask.getScans(), horseDismissTask.getHorsesChecked(), horseDismissTask.getHorsesDismissed(), TimeUnit.NANOSECONDS.toMicros(horseDismissTask.getAverageScanTime()), TimeUnit.NANOSECONDS.toMicros(horseDismissTask.getMaxScanTime()));
+		}
 		summonCmd = null;
 		commandHandler = null;
 		database = null;
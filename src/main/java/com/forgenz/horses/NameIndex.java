@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Indexes values by name ignoring case, answering exact and prefix lookups<br/>
+ * 
+ * Values sharing a name are kept in the order they were added. The index is not thread safe.
+ */
+class NameIndex<T>
+{
+	private final TreeMap<String, List<Entry<T>>> names = new TreeMap<String, List<Entry<T>>>(String.CASE_INSENSITIVE_ORDER);
+	/** Counts values added so the index can tell which came first */
+	private long addCount = 0;
+	
+	/**
+	 * Adds a value after every value already in the index
+	 * @param name The value's name
+	 * @param value The value
+	 */
+	public void add(String name, T value)
+	{
+		insert(name, new Entry<T>(value, addCount++));
+	}
+	
+	/**
+	 * Adds a value back to the place it had before it was removed
+	 * @param name The value's name
+	 * @param value The value
+	 * @param order The order returned when the value was removed
+	 */
+	public void restore(String name, T value, long order)
+	{
+		insert(name, new Entry<T>(value, order));
+	}
+	
+	/**
+	 * Removes a value from the index
+	 * @param name The name the value was added under
+	 * @param value The value
+	 * @return The order the value was added in, which can be used to restore it, or -1 if the
+	 * value was not in the index
+	 */
+	public long remove(String name, T value)
+	{
+		Entry<T> entry = take(name, value);
+		return entry != null ? entry.order : -1;
+	}
+	
+	/**
+	 * Moves a value to a new name, keeping its place in the order values were added
+	 * @param value The value
+	 * @param oldName The name the value was added under
+	 * @param newName The value's new name
+	 */
+	public void rename(T value, String oldName, String newName)
+	{
+		Entry<T> entry = take(oldName, value);
+		
+		if (entry != null)
+			insert(newName, entry);
+	}
+	
+	/**
+	 * Finds a value by name<br/>
+	 * 
+	 * A value whose name matches exactly is preferred. Otherwise the first value added whose
+	 * name starts with the given name is returned.
+	 * @param name The name we are looking for
+	 * @param exact True if only an exact match should be returned
+	 * @return The value found or null if nothing matched
+	 */
+	public T find(String name, boolean exact)
+	{
+		List<Entry<T>> entries = names.get(name);
+		
+		if (entries != null)
+			return entries.get(0).value;
+		
+		if (exact)
+			return null;
+		
+		// Names starting with the given name follow it in the index
+		Entry<T> bestMatch = null;
+		for (Map.Entry<String, List<Entry<T>>> e : names.tailMap(name, false).entrySet())
+		{
+			if (!e.getKey().regionMatches(true, 0, name, 0, name.length()))
+				break;
+			
+			Entry<T> entry = e.getValue().get(0);
+			if (bestMatch == null || entry.order < bestMatch.order)
+				bestMatch = entry;
+		}
+		
+		return bestMatch != null ? bestMatch.value : null;
+	}
+	
+	private void insert(String name, Entry<T> entry)
+	{
+		List<Entry<T>> entries = names.get(name);
+		
+		if (entries == null)
+		{
+			entries = new ArrayList<Entry<T>>(1);
+			names.put(name, entries);
+		}
+		
+		int index = entries.size();
+		while (index > 0 && entries.get(index - 1).order > entry.order)
+			--index;
+		entries.add(index, entry);
+	}
+	
+	private Entry<T> take(String name, T value)
+	{
+		List<Entry<T>> entries = names.get(name);
+		
+		if (entries == null)
+			return null;
+		
+		for (int i = 0; i < entries.size(); ++i)
+		{
+			if (entries.get(i).value == value)
+			{
+				Entry<T> entry = entries.remove(i);
+				
+				if (entries.isEmpty())
+					names.remove(name);
+				
+				return entry;
+			}
+		}
+		
+		return null;
+	}
+	
+	private static class Entry<T>
+	{
+		private final T value;
+		/** The order the value was added to the index */
+		private final long order;
+		
+		public Entry(T value, long order)
+		{
+			this.value = value;
+			this.order = order;
+		}
+	}
+}
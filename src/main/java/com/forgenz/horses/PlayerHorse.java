@@ -28,7 +28,11 @@
  
 package com.forgenz.horses;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import org.bukkit.ChatColor;
@@ -41,21 +45,29 @@ import org.bukkit.inventory.HorseInventory;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.metadata.FixedMetadataValue;
-import org.bukkit.metadata.MetadataValue;
 
 import com.forgenz.forgecore.v1_0.ForgeCore;
 import com.forgenz.horses.util.HorseSpeedUtil;
+import com.forgenz.horses.util.InventoryCodec;
 
 public class PlayerHorse implements ForgeCore
 {
 	private static final String OWNERSHIP_METADATA_KEY = "Horses.Ownership"; 
 	private static final Location cacheLoc = new Location(null, 0.0, 0.0, 0.0);
 	
+	/** Spawned horses indexed by the UUID of their entity */
+	private static final ConcurrentHashMap<UUID, PlayerHorse> spawnedHorses = new ConcurrentHashMap<UUID, PlayerHorse>();
+	/** Spawned horses indexed by the UUID of their owner */
+	private static final ConcurrentHashMap<UUID, PlayerHorse> activeHorses = new ConcurrentHashMap<UUID, PlayerHorse>();
+	
 	public static final Pattern FORMATTING_CODES_PATTERN = Pattern.compile("&[klmnor]", Pattern.CASE_INSENSITIVE);
 	
 	private final Horses plugin;
 	private final Stable stable;
-	private int id;
+	private volatile int id;
+	
+	/** The live horse this horse is a snapshot of */
+	private final PlayerHorse source;
 	
 	private AbstractHorse horse;
 	
@@ -74,6 +86,8 @@ public class PlayerHorse implements ForgeCore
 	private boolean hasChest = false;
 	
 	private final ArrayList<ItemStack> inventory = new ArrayList<ItemStack>();
+	/** The inventory as it was loaded, until the items are first used */
+	private byte[] encodedItems = null;
 	
 	public PlayerHorse(Horses plugin, Stable stable, String name, HorseType type, double maxHealth, double health, double speed, double jumpStrength, AbstractHorse horse)
 	{
@@ -85,6 +99,7 @@ public class PlayerHorse implements ForgeCore
 		this.plugin = plugin;
 		this.stable = stable;
 		this.id = id;
+		this.source = null;
 		
 		this.displayName = ChatColor.translateAlternateColorCodes('&', name).replaceAll("&", "").replaceAll(" ", "_").replaceAll("\\.", "");
 		this.name = ChatColor.stripColor(this.displayName);
@@ -120,6 +135,59 @@ public class PlayerHorse implements ForgeCore
 		}
 	}
 	
+	/**
+	 * Creates a detached copy of the horse
+	 */
+	private PlayerHorse(Stable stable, PlayerHorse horse)
+	{
+		this.plugin = horse.plugin;
+		this.stable = stable;
+		this.id = horse.id;
+		this.source = horse;
+		
+		this.lastDeath = horse.lastDeath;
+		this.name = horse.name;
+		this.displayName = horse.displayName;
+		this.type = horse.type;
+		
+		this.maxHealth = horse.getMaxHealth();
+		this.health = horse.getHealth();
+		this.speed = horse.getSpeed();
+		this.jumpStrength = horse.getJumpStrength();
+		this.hasChest = horse.hasChest();
+		
+		// An inventory which has not been used yet doesn't need decoding to be copied
+		if (horse.encodedItems != null)
+		{
+			this.encodedItems = horse.encodedItems;
+			return;
+		}
+		
+		for (ItemStack item : horse.getItems())
+			inventory.add(item != null ? item.clone() : null);
+	}
+	
+	/**
+	 * Creates a detached copy of the horse which can be saved off the main thread<br/>
+	 * 
+	 * The copy shares its ID with this horse so ID's assigned while saving the copy are kept.
+	 * 
+	 * @param stable The snapshot of the stable the copy belongs to
+	 * @return The snapshot
+	 */
+	public PlayerHorse snapshot(Stable stable)
+	{
+		return new PlayerHorse(stable, this);
+	}
+	
+	/**
+	 * @return The horse this is a snapshot of, or null if this is not a snapshot
+	 */
+	public PlayerHorse getSource()
+	{
+		return source;
+	}
+	
 	public Stable getStable()
 	{
 		return stable;
@@ -163,12 +231,15 @@ public class PlayerHorse implements ForgeCore
 	
 	public int getId()
 	{
-		return id;
+		return source != null ? source.getId() : id;
 	}
 	
 	public void setId(int id)
 	{
 		this.id = id;
+		
+		if (source != null)
+			source.setId(id);
 	}
 	
 	public double getMaxHealth()
@@ -303,6 +374,8 @@ public class PlayerHorse implements ForgeCore
 	
 	public ItemStack getItem(int i)
 	{
+		decodeItems();
+		
 		if (inventory.size() <= i && i < 0)
 			return null;
 		
@@ -323,6 +396,8 @@ public class PlayerHorse implements ForgeCore
 		if (i < 0)
 			return;
 		
+		decodeItems();
+		
 		if (inventory.size() <= i)
 		{
 			for (int index = inventory.size(); index < i; ++index)
@@ -334,6 +409,7 @@ public class PlayerHorse implements ForgeCore
 	
 	public void setItems(ItemStack[] items)
 	{
+		encodedItems = null;
 		inventory.clear();
 		inventory.ensureCapacity(items.length);
 		
@@ -343,6 +419,8 @@ public class PlayerHorse implements ForgeCore
 	
 	public ItemStack[] getItems()
 	{
+		decodeItems();
+		
 		if (horse != null)
 		{
 			ItemStack[] items = horse.getInventory().getContents();
@@ -357,6 +435,45 @@ public class PlayerHorse implements ForgeCore
 		return inventory.toArray(new ItemStack[inventory.size()]);
 	}
 	
+	/**
+	 * Gives the horse an inventory encoded by {@link InventoryCodec}<br/>
+	 * 
+	 * The items are only decoded once they are used. Until then the encoded
+	 * inventory is saved as it is.
+	 * @param encodedItems The encoded inventory
+	 */
+	public void setEncodedItems(byte[] encodedItems)
+	{
+		inventory.clear();
+		this.encodedItems = encodedItems;
+	}
+	
+	/**
+	 * @return The encoded inventory or null if the items have been decoded
+	 */
+	public byte[] getEncodedItems()
+	{
+		return encodedItems;
+	}
+	
+	private void decodeItems()
+	{
+		if (encodedItems == null)
+			return;
+		
+		byte[] data = encodedItems;
+		encodedItems = null;
+		
+		try
+		{
+			setItems(InventoryCodec.decode(data));
+		}
+		catch (IOException e)
+		{
+			getPlugin().severe("Error when loading player %s's horses inventory", e, stable.getOwner());
+		}
+	}
+	
 	public void removeHorse()
 	{
 		if (horse != null)
@@ -389,6 +506,7 @@ public class PlayerHorse implements ForgeCore
 			
 			stable.removeActiveHorse(this);
 			
+			unregister();
 			horse.removeMetadata(OWNERSHIP_METADATA_KEY, getPlugin());
 			horse = null;
 		}
@@ -396,6 +514,22 @@ public class PlayerHorse implements ForgeCore
 		saveChanges();
 	}
 	
+	/**
+	 * Dismisses the horse if its entity is no longer valid<br/>
+	 * 
+	 * The entity may have been unloaded with its chunk, killed or removed by another plugin
+	 * without the horse being dismissed, which would leave it in the spawned horse index.
+	 * @return True if the horse had to be dismissed
+	 */
+	public boolean removeIfInvalid()
+	{
+		if (horse == null || horse.isValid())
+			return false;
+		
+		removeHorse();
+		return true;
+	}
+	
 	public boolean spawnHorse(Player player)
 	{
 		if (!player.getName().equals(getStable().getOwner()))
@@ -449,6 +583,7 @@ public class PlayerHorse implements ForgeCore
 			}
 			
 			// Setup the horses inventory
+			decodeItems();
 			Inventory inv = horse.getInventory();
 			
 			ItemStack[] items = inv.getContents();
@@ -488,6 +623,10 @@ public class PlayerHorse implements ForgeCore
 			
 			// Setup the horses metadata
 			horse.setMetadata(OWNERSHIP_METADATA_KEY, new FixedMetadataValue(getPlugin(), this));
+			spawnedHorses.put(horse.getUniqueId(), this);
+			// Online players' stables always know their owner's UUID
+			if (getStable().getOwnerId() != null)
+				activeHorses.put(getStable().getOwnerId(), this);
 			
 			getStable().setActiveHorse(this);
 			
@@ -511,13 +650,26 @@ public class PlayerHorse implements ForgeCore
 		{
 			horse.remove();
 			getStable().removeActiveHorse(this);
+			unregister();
 		}
 		
 		return stable.deleteHorse(this);
 	}
 	
+	/**
+	 * Removes the spawned horse from the spawned horse indexes
+	 */
+	private void unregister()
+	{
+		spawnedHorses.remove(horse.getUniqueId(), this);
+		
+		if (stable.getOwnerId() != null)
+			activeHorses.remove(stable.getOwnerId(), this);
+	}
+	
 	public void rename(String name)
 	{
+		String oldName = this.name;
 		this.displayName = ChatColor.translateAlternateColorCodes('&', name).replaceAll("&", "").replaceAll(" ", "_");
 		this.name = ChatColor.stripColor(this.displayName);
 		
@@ -526,19 +678,27 @@ public class PlayerHorse implements ForgeCore
 			horse.setCustomName(this.displayName);
 		}
 		
+		stable.renameHorse(this, oldName);
 		saveChanges();
 	}
 	
+	/**
+	 * Fetches the data for a horse spawned by Horses<br/>
+	 * 
+	 * Wild horses are not in the index so they are rejected with a single lookup
+	 * @param horse The horse entity
+	 * @return The horse's data, or null if Horses does not own the horse
+	 */
 	public static PlayerHorse getFromEntity(AbstractHorse horse)
 	{
-		for (MetadataValue meta : horse.getMetadata(OWNERSHIP_METADATA_KEY))
-		{
-			if (meta.getOwningPlugin() == Horses.getInstance() && meta.value().getClass() == PlayerHorse.class)
-			{
-				return (PlayerHorse) meta.value();
-			}
-		}
-		
-		return null;
+		return spawnedHorses.get(horse.getUniqueId());
+	}
+	
+	/**
+	 * @return A live view of the horses which are currently spawned, one per owner
+	 */
+	public static Collection<PlayerHorse> getActiveHorses()
+	{
+		return activeHorses.values();
 	}
 }
@@ -28,10 +28,11 @@
 
 package com.forgenz.horses;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
@@ -46,24 +47,128 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	private final Horses plugin;
 	private final String group;
 	private final String player;
-	private int id;
+	private final UUID playerId;
+	private volatile int id;
 	
-	private List<PlayerHorse> horses = Collections.synchronizedList(new LinkedList<PlayerHorse>());
+	/** The live stable this stable is a snapshot of */
+	private final Stable source;
+	
+	/**
+	 * Horses are added and removed far less often than they are read<br/>
+	 * 
+	 * Copying on write lets the main thread and async saves iterate without locking
+	 */
+	private final CopyOnWriteArrayList<PlayerHorse> horses = new CopyOnWriteArrayList<PlayerHorse>();
+	
+	/**
+	 * The horses indexed by name ignoring case, guarded by its own lock<br/>
+	 * 
+	 * Horses sharing a name are kept in the order they were added
+	 */
+	private final NameIndex<PlayerHorse> names = new NameIndex<PlayerHorse>();
 	
 	private PlayerHorse activeHorse;
 	private PlayerHorse lastActiveHorse;
 	
+	/** True if the stable has changes waiting to be saved */
+	private boolean dirty = false;
+	
 	public Stable(Horses plugin, String group, String player)
 	{
-		this(plugin, group, player, -1);
+		this(plugin, group, player, null, -1);
 	}
 	
 	public Stable(Horses plugin, String group, String player, int id)
+	{
+		this(plugin, group, player, null, id);
+	}
+	
+	public Stable(Horses plugin, String group, String player, UUID playerId)
+	{
+		this(plugin, group, player, playerId, -1);
+	}
+	
+	public Stable(Horses plugin, String group, String player, UUID playerId, int id)
+	{
+		this(plugin, group, player, playerId, id, null);
+	}
+	
+	private Stable(Horses plugin, String group, String player, UUID playerId, int id, Stable source)
 	{
 		this.plugin = plugin;
 		this.group = group;
 		this.player = player;
+		this.playerId = playerId;
 		this.id = id;
+		this.source = source;
+	}
+	
+	/**
+	 * Creates a detached copy of the stable and its horses which can be saved off the main thread<br/>
+	 * 
+	 * The copy shares its ID with this stable so ID's assigned while saving the copy are kept.
+	 * 
+	 * @return The snapshot
+	 */
+	public Stable snapshot()
+	{
+		Stable snapshot = new Stable(plugin, group, player, playerId, id, this);
+		PlayerHorse lastActive = getLastActiveHorse();
+		
+		List<PlayerHorse> horseSnapshots = new ArrayList<PlayerHorse>(horses.size());
+		
+		synchronized (snapshot.names)
+		{
+			for (PlayerHorse horse : horses)
+			{
+				PlayerHorse horseSnapshot = horse.snapshot(snapshot);
+				horseSnapshots.add(horseSnapshot);
+				snapshot.names.add(horseSnapshot.getName(), horseSnapshot);
+				
+				if (horse == lastActive)
+					snapshot.lastActiveHorse = horseSnapshot;
+			}
+		}
+		
+		// Copy the horses into the snapshot's list all at once
+		snapshot.horses.addAll(horseSnapshots);
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Creates a detached copy of a single horse which can be saved off the main thread<br/>
+	 * 
+	 * The copy's stable only holds the horse and, if it is another horse, the last active horse,
+	 * so saving one horse does not copy the whole stable.
+	 * 
+	 * @param horse The horse to copy
+	 * @return The snapshot of the horse, whose stable is empty if the horse is not in this stable
+	 */
+	public PlayerHorse snapshot(PlayerHorse horse)
+	{
+		Stable snapshot = new Stable(plugin, group, player, playerId, id, this);
+		PlayerHorse lastActive = getLastActiveHorse();
+		
+		PlayerHorse horseSnapshot = horse.snapshot(snapshot);
+		
+		if (horses.contains(horse))
+			snapshot.addHorse(horseSnapshot);
+		
+		if (lastActive == horse)
+			snapshot.lastActiveHorse = horseSnapshot;
+		else if (lastActive != null)
+			snapshot.lastActiveHorse = lastActive.snapshot(snapshot);
+		
+		return horseSnapshot;
+	}
+	
+	/**
+	 * @return The stable this is a snapshot of, or null if this is not a snapshot
+	 */
+	public Stable getSource()
+	{
+		return source;
 	}
 
 	@Override
@@ -77,6 +182,14 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 		return player;
 	}
 	
+	/**
+	 * @return The UUID of the player who owns the stable, or null if it is not known
+	 */
+	public UUID getOwnerId()
+	{
+		return playerId;
+	}
+	
 	public Player getPlayerOwner()
 	{
 		return Bukkit.getPlayerExact(getOwner());
@@ -89,12 +202,15 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	 */
 	public int getId()
 	{
-		return id;
+		return source != null ? source.getId() : id;
 	}
 	
 	public void setId(int id)
 	{
 		this.id = id;
+		
+		if (source != null)
+			source.setId(id);
 	}
 	
 	public String getGroup()
@@ -102,6 +218,29 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 		return group;
 	}
 	
+	/**
+	 * Marks the stable as having changes which have not been saved yet
+	 * @return False if the stable was already marked
+	 */
+	public boolean markDirty()
+	{
+		if (dirty)
+			return false;
+		
+		dirty = true;
+		return true;
+	}
+	
+	public boolean isDirty()
+	{
+		return dirty;
+	}
+	
+	public void clearDirty()
+	{
+		dirty = false;
+	}
+	
 	public int getHorseCount()
 	{
 		return horses.size();
@@ -109,7 +248,24 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	
 	public void addHorse(PlayerHorse horse)
 	{
-		horses.add(horse);
+		synchronized (names)
+		{
+			horses.add(horse);
+			names.add(horse.getName(), horse);
+		}
+	}
+	
+	/**
+	 * Updates the name index after a horse has been renamed
+	 * @param horse The horse which was renamed
+	 * @param oldName The name the horse had before
+	 */
+	protected void renameHorse(PlayerHorse horse, String oldName)
+	{
+		synchronized (names)
+		{
+			names.rename(horse, oldName, horse.getName());
+		}
 	}
 	
 	protected void setActiveHorse(PlayerHorse horseData)
@@ -126,7 +282,12 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	
 	public PlayerHorse getLastActiveHorse()
 	{
-		return lastActiveHorse != null || horses.isEmpty() ? lastActiveHorse : horses.get(0);
+		if (lastActiveHorse != null)
+			return lastActiveHorse;
+		
+		// The list may be emptied between checking and fetching the first horse
+		Iterator<PlayerHorse> it = horses.iterator();
+		return it.hasNext() ? it.next() : null;
 	}
 	
 	public void setLastActiveHorse(PlayerHorse horse)
@@ -145,41 +306,11 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	 */
 	public PlayerHorse findHorse(String name, boolean exact)
 	{
-		PlayerHorse bestMatch = null;
-		
-		synchronized (horses)
+		// The horse which has been in the stable the longest is the best partial match
+		synchronized (names)
 		{
-			Iterator<PlayerHorse> it = horses.iterator();
-			
-			name = name.toLowerCase();
-			int length = 0;
-			boolean startsWith = false;
-			
-			while (it.hasNext())
-			{
-				PlayerHorse horse = it.next();
-				
-				String horseName = horse.getName().toLowerCase();
-				
-				if (horseName.equals(name))
-					return horse;
-				else if (exact)
-					continue;
-				else if (horseName.startsWith(name))
-				{
-					if (length < name.length())
-					{
-						length = name.length();
-						bestMatch = horse;
-						startsWith = true;
-					}
-				}
-				else if (!startsWith && bestMatch != null && horseName.contains(name))
-					bestMatch = horse;
-			}
+			return names.find(name, exact);
 		}
-		
-		return bestMatch;
 	}
 	
 	public PlayerHorse createHorse(String name, HorseTypeConfig typecfg, boolean saddle)
@@ -196,7 +327,7 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	{
 		PlayerHorse horseData = new PlayerHorse(plugin, this, name, typecfg.type, typecfg.horseHp, typecfg.horseMaxHp, typecfg.speed, typecfg.jumpStrength, horse);
 		
-		horses.add(horseData);
+		addHorse(horseData);
 		
 		if (horse == null && saddle)
 		{
@@ -208,6 +339,11 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 		return horseData;
 	}
 
+	/**
+	 * Iterates over the horses in the stable when the iterator was created<br/>
+	 * 
+	 * The iterator does not support removal
+	 */
 	@Override
 	public Iterator<PlayerHorse> iterator()
 	{
@@ -216,15 +352,13 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 
 	public PlayerHorse getActiveHorse()
 	{
-		if (activeHorse != null)
-		{
-			if (activeHorse.getHorse() == null || !activeHorse.getHorse().isValid())
-			{
-				activeHorse = null;
-			}
-		}
+		PlayerHorse horse = activeHorse;
+		
+		// Horses whose entity has become invalid are dismissed by the HorseDismissTask
+		if (horse == null || horse.getHorse() == null || !horse.getHorse().isValid())
+			return null;
 		
-		return activeHorse;
+		return horse;
 	}
 
 	protected void removeActiveHorse(PlayerHorse horseData)
@@ -237,15 +371,39 @@ public class Stable implements ForgeCore, Iterable<PlayerHorse>
 	
 	public boolean deleteHorse(PlayerHorse playerHorse)
 	{
-		if (lastActiveHorse == playerHorse)
+		boolean lastActive = lastActiveHorse == playerHorse;
+		if (lastActive)
 			lastActiveHorse = null;
 		
-		if (getPlugin().getHorseDatabase().deleteHorse(playerHorse))
+		int index;
+		long order = -1;
+		
+		// Remove the horse first so it is not saved along with the rest of the stable
+		synchronized (names)
 		{
-			horses.remove(playerHorse);
+			index = horses.indexOf(playerHorse);
+			if (index != -1)
+			{
+				horses.remove(index);
+				order = names.remove(playerHorse.getName(), playerHorse);
+			}
+		}
+		
+		if (getPlugin().getHorseDatabase().deleteHorse(playerHorse))
 			return true;
+		
+		// Put the horse back where it was so the order of the stable does not change
+		if (index != -1)
+		{
+			synchronized (names)
+			{
+				horses.add(Math.min(index, horses.size()), playerHorse);
+				names.restore(playerHorse.getName(), playerHorse, order);
+			}
 		}
 		
+		if (lastActive)
+			lastActiveHorse = playerHorse;
 		return false;
 	}
 }
@@ -59,6 +59,13 @@ public class HorsesConfig extends AbstractConfig implements ForgeCore
 	
 	public final boolean fixZeroJumpStrength;
 	
+	public final boolean asyncSaving;
+	public final int saveQueueSize;
+	public final int yamlSaveDelay;
+	public final boolean yamlShardedLayout;
+	public final int offlineStableCacheSize;
+	public final int offlineStableCacheTime;
+	
 	public final Pattern rejectedHorseNamePattern;
 	
 	public HorsesConfig(Horses plugin)
@@ -131,6 +138,13 @@ public class HorsesConfig extends AbstractConfig implements ForgeCore
 		
 		fixZeroJumpStrength = getAndSet("FixZeroJumpStrength", true, Boolean.class);
 		
+		asyncSaving = getAndSet("AsyncSaving", true, Boolean.class);
+		saveQueueSize = getAndSet("SaveQueueSize", 1000, Number.class).intValue();
+		yamlSaveDelay = getAndSet("YamlSaveDelay", 5, Number.class).intValue();
+		yamlShardedLayout = getAndSet("YamlShardedLayout", false, Boolean.class);
+		offlineStableCacheSize = getAndSet("OfflineStableCacheSize", 100, Number.class).intValue();
+		offlineStableCacheTime = getAndSet("OfflineStableCacheTime", 300, Number.class).intValue();
+		
 		// Finally setup the global config
 		globalCfg = new HorsesWorldConfig(plugin, cfg);
 		
@@ -28,8 +28,8 @@
 
 package com.forgenz.horses.database;
 
-import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
 import org.bukkit.ChatColor;
 import org.bukkit.event.EventHandler;
@@ -61,9 +61,8 @@ public class DummyDatabase extends HorseDatabase implements Listener
 	}
 	
 	@Override
-	protected List<Stable> loadEverything()
+	protected void loadEverything(StableVisitor visitor)
 	{
-		return Collections.emptyList();
 	}
 	
 	@Override
@@ -73,14 +72,9 @@ public class DummyDatabase extends HorseDatabase implements Listener
 	}
 
 	@Override
-	protected Stable loadStable(String player, String stableGroup)
-	{
-		return new Stable(getPlugin(), stableGroup, player);
-	}
-
-	@Override
-	protected void loadHorses(Stable stable, String stableGroup)
+	protected Stable loadStable(String player, UUID playerId, String stableGroup)
 	{
+		return new Stable(getPlugin(), stableGroup, player, playerId);
 	}
 
 	@Override
@@ -89,12 +83,12 @@ public class DummyDatabase extends HorseDatabase implements Listener
 	}
 
 	@Override
-	public void saveHorse(PlayerHorse horse)
+	protected void saveHorseData(PlayerHorse horse)
 	{
 	}
 
 	@Override
-	public boolean deleteHorse(PlayerHorse horse)
+	protected boolean deleteHorseData(PlayerHorse horse)
 	{
 		return true;
 	}
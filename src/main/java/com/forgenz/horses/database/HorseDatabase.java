@@ -28,47 +28,477 @@
 
 package com.forgenz.horses.database;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.regex.Pattern;
 
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitRunnable;
 
 import com.forgenz.forgecore.v1_0.ForgeCore;
 import com.forgenz.horses.Horses;
 import com.forgenz.horses.PlayerHorse;
 import com.forgenz.horses.Stable;
+import com.forgenz.horses.config.HorsesConfig;
+import com.forgenz.horses.util.InventoryCodec;
 
 public abstract class HorseDatabase implements ForgeCore
 {
 	public static final String DEFAULT_GROUP = "default";
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
 	protected static final Pattern COLOUR_CHAR_REPLACE = Pattern.compile(Character.toString(ChatColor.COLOR_CHAR), Pattern.LITERAL);
 	
+	/** Ticks a stable loaded during login is kept for if the player never joins */
+	private static final long PRELOAD_TIMEOUT = 60 * 20L;
+	/** The number of players whose stable group is remembered after they leave */
+	private static final int MAX_QUIT_STABLE_GROUPS = 1000;
+	
 	private final Horses plugin;
 	private final HorseDatabaseStorageType dbType;
 	
-	private final HashMap<String, Stable> playerStables = new HashMap<String, Stable>();
+	private final StableRegistry registry;
+	private OfflineStableCache offlineStables;
+	/** The stable group each online player is using */
+	private final ConcurrentHashMap<UUID, String> lastStableGroups = new ConcurrentHashMap<UUID, String>();
+	/** The stable group recent players were using when they left */
+	private final Map<UUID, String> quitStableGroups = Collections.synchronizedMap(new LinkedHashMap<UUID, String>(16, 0.75F, true)
+	{
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest)
+		{
+			return size() > MAX_QUIT_STABLE_GROUPS;
+		}
+	});
+	/** The stable groups loaded for each player who is logging in */
+	private final ConcurrentHashMap<UUID, List<String>> preloadedGroups = new ConcurrentHashMap<UUID, List<String>>();
+	/** The stable group of the world new players spawn in */
+	private final String spawnStableGroup;
+	
+	private final WriteBehindQueue writeQueue;
+	
+	/** Ticks to wait before saving a changed stable, 0 to save straight away */
+	private final long saveDelay;
+	/** Stables which are waiting for their delayed save */
+	private final LinkedHashSet<Stable> dirtyStables = new LinkedHashSet<Stable>();
 	
 	public HorseDatabase(Horses plugin, HorseDatabaseStorageType dbType)
 	{
 		this.plugin = plugin;
 		this.dbType = dbType;
+		
+		HorsesConfig cfg = plugin.getHorsesConfig();
+		writeQueue = cfg != null && cfg.asyncSaving && !hasAsyncWriter() ? new WriteBehindQueue(this, cfg.saveQueueSize) : null;
+		saveDelay = cfg != null ? Math.max(0, cfg.yamlSaveDelay) * 20L : 0L;
+		spawnStableGroup = cfg != null ? cfg.getStableGroup(Bukkit.getWorlds().isEmpty() ? null : Bukkit.getWorlds().get(0)) : DEFAULT_GROUP;
+		
+		offlineStables = new OfflineStableCache(cfg != null ? cfg.offlineStableCacheSize : 0, cfg != null ? cfg.offlineStableCacheTime : 0);
+		
+		registry = new StableRegistry(plugin, new StableRegistry.StableLoader()
+		{
+			@Override
+			public Stable load(String player, UUID playerId, String stableGroup)
+			{
+				// Players who reconnect get back the stable they were using
+				Stable stable = offlineStables.take(player, playerId, stableGroup);
+				if (stable != null)
+					return stable;
+				
+				// Make sure we don't load data which is still waiting to be written
+				if (writeQueue != null)
+					writeQueue.await(player);
+				
+				return loadStable(player, playerId, stableGroup);
+			}
+			
+			@Override
+			public Map<String, Stable> load(String player, UUID playerId, Collection<String> stableGroups)
+			{
+				Map<String, Stable> stables = new HashMap<String, Stable>();
+				List<String> missing = new ArrayList<String>(stableGroups.size());
+				
+				for (String stableGroup : stableGroups)
+				{
+					Stable stable = offlineStables.take(player, playerId, stableGroup);
+					if (stable != null)
+						stables.put(stableGroup, stable);
+					else
+						missing.add(stableGroup);
+				}
+				
+				if (missing.isEmpty())
+					return stables;
+				
+				if (writeQueue != null)
+					writeQueue.await(player);
+				
+				stables.putAll(loadStables(player, playerId, missing));
+				return stables;
+			}
+		});
 	}
 	
-	protected abstract List<Stable> loadEverything();
+	/**
+	 * Reads every stable in the database, handing each one to the visitor as it is read<br/>
+	 * 
+	 * Stables should not be kept in memory once they have been visited
+	 * @param visitor The visitor which receives the stables
+	 */
+	protected abstract void loadEverything(StableVisitor visitor);
 	
+	/**
+	 * Writes a batch of stables read from another database<br/>
+	 * 
+	 * This is called once for each batch during an import. If a stable's owner was
+	 * imported in an earlier batch the stable already has the ID of the owner's stable.
+	 * @param stables The stables to import
+	 */
 	protected abstract void importStables(List<Stable> stables);
 	
-	protected abstract Stable loadStable(String player, String stableGroup);
+	/**
+	 * Loads the players stable for the given stable group
+	 * @param player The name of the player
+	 * @param playerId The UUID of the player, or null if it is not known
+	 * @param stableGroup The stable group to load
+	 * @return The players stable
+	 */
+	protected abstract Stable loadStable(String player, UUID playerId, String stableGroup);
 	
-	protected abstract void loadHorses(Stable stable, String stableGroup);
+	/**
+	 * Loads the players stables for several stable groups at once<br/>
+	 * 
+	 * Backends which can fetch every group in one go should override this
+	 * @param player The name of the player
+	 * @param playerId The UUID of the player, or null if it is not known
+	 * @param stableGroups The stable groups to load
+	 * @return A map of stable groups to the players stable for the group
+	 */
+	protected Map<String, Stable> loadStables(String player, UUID playerId, Collection<String> stableGroups)
+	{
+		Map<String, Stable> stables = new HashMap<String, Stable>();
+		
+		for (String stableGroup : stableGroups)
+		{
+			Stable stable = loadStable(player, playerId, stableGroup);
+			if (stable != null)
+				stables.put(stableGroup, stable);
+		}
+		
+		return stables;
+	}
 	
 	protected abstract void saveStable(Stable stable);
 	
-	public abstract void saveHorse(PlayerHorse horse);
+	protected abstract void saveHorseData(PlayerHorse horse);
+	
+	protected abstract boolean deleteHorseData(PlayerHorse horse);
+	
+	/**
+	 * Saves several stables at once<br/>
+	 * 
+	 * Backends which can write in bulk should override this
+	 * @param stables The stables to save
+	 */
+	protected void saveStables(List<Stable> stables)
+	{
+		for (Stable stable : stables)
+		{
+			saveStable(stable);
+		}
+	}
+	
+	/**
+	 * Saves several horses at once<br/>
+	 * 
+	 * Backends which can write in bulk should override this
+	 * @param horses The horses to save
+	 */
+	protected void saveHorses(List<PlayerHorse> horses)
+	{
+		for (PlayerHorse horse : horses)
+		{
+			saveHorseData(horse);
+		}
+	}
+	
+	/**
+	 * Makes sure every write made so far has reached the disk<br/>
+	 * 
+	 * Called after each batch of writes. Backends whose writes are already durable
+	 * don't need to override this.
+	 */
+	protected void sync()
+	{
+	}
+	
+	/**
+	 * Starts any background work the database does while it is in use<br/>
+	 * 
+	 * Only called on the plugin's database, so a database created as the source of an
+	 * import never starts it.
+	 */
+	public void open()
+	{
+	}
+	
+	/**
+	 * @return True if saving a single horse rewrites the horse's whole stable
+	 */
+	protected boolean isHorseSavedWithStable()
+	{
+		return false;
+	}
+	
+	/**
+	 * Backends which queue their own writes to another thread should override this<br/>
+	 * 
+	 * Their saves run on the main thread, where the players and horses can be read safely,
+	 * and only hand the finished data to their writer.
+	 * @return True if the backend already writes off the main thread
+	 */
+	protected boolean hasAsyncWriter()
+	{
+		return false;
+	}
+	
+	/**
+	 * Saves the horse's current state, off the main thread if asynchronous saving is enabled
+	 * @param horse The horse to save
+	 */
+	public void saveHorse(PlayerHorse horse)
+	{
+		if (isSaveDelayed())
+			saveLater(horse.getStable());
+		else if (writeQueue != null)
+			writeQueue.saveHorse(horse);
+		else
+		{
+			saveHorseData(horse);
+			sync();
+		}
+	}
+	
+	/**
+	 * Deletes the horse from the database, off the main thread if asynchronous saving is enabled
+	 * @param horse The horse to delete, which should no longer be in its stable
+	 * @return False if the horse could not be deleted
+	 */
+	public boolean deleteHorse(PlayerHorse horse)
+	{
+		if (isSaveDelayed())
+		{
+			saveLater(horse.getStable());
+			return true;
+		}
+		
+		if (writeQueue == null)
+		{
+			boolean deleted = deleteHorseData(horse);
+			sync();
+			return deleted;
+		}
+		
+		writeQueue.deleteHorse(horse);
+		return true;
+	}
+	
+	/**
+	 * @return True if horse changes are merged into a single save of their stable after a delay
+	 */
+	private boolean isSaveDelayed()
+	{
+		return saveDelay > 0 && isHorseSavedWithStable();
+	}
+	
+	/**
+	 * Marks the stable as changed and saves it once the save delay has passed<br/>
+	 * 
+	 * Further changes made before then are written by the same save
+	 * @param stable The stable to save
+	 */
+	private void saveLater(final Stable stable)
+	{
+		if (!stable.markDirty())
+			return;
+		
+		dirtyStables.add(stable);
+		
+		new BukkitRunnable()
+		{
+			@Override
+			public void run()
+			{
+				// The stable may have been saved when it was unloaded
+				if (stable.isDirty())
+					writeStable(stable);
+			}
+		}.runTaskLater(getPlugin(), saveDelay);
+	}
+	
+	private void writeStable(Stable stable)
+	{
+		stable.clearDirty();
+		dirtyStables.remove(stable);
+		
+		if (writeQueue != null)
+		{
+			writeQueue.saveStable(stable);
+		}
+		else
+		{
+			saveStable(stable);
+			sync();
+		}
+	}
+	
+	/**
+	 * Serialises the item stacks. Saves them into a yaml configuration then dumps to a string
+	 * @param horse The horse we want an inventory string for
+	 * @return The inventory string
+	 */
+	protected String getInventoryString(PlayerHorse horse)
+	{
+		ArrayList<Map<String, Object>> itemList = new ArrayList<Map<String, Object>>();
+		
+		ItemStack[] items = horse.getItems();
+		for (int i = 0; i < items.length; ++i)
+		{
+			if (items[i] == null)
+				continue;
+			
+			Map<String, Object> itemMap = items[i].serialize();
+			itemMap.put("slot", i);
+			itemList.add(itemMap);
+		}
+		
+		YamlConfiguration itemCfg = new YamlConfiguration();
+		itemCfg.set("i", itemList);
+		
+		return itemCfg.saveToString();
+	}
+	
+	/**
+	 * Deserialises an inventory string created by {@link #getInventoryString(PlayerHorse)}
+	 * @param stable The stable the horse belongs to
+	 * @param inventory The inventory string
+	 * @return The horses items or null if it has none
+	 */
+	@SuppressWarnings("unchecked")
+	protected ItemStack[] readInventoryString(Stable stable, String inventory)
+	{
+		// Create a configuration from the inventory string
+		YamlConfiguration itemCfg = new YamlConfiguration();
+		ArrayList<ItemStack> items = null;
+		try
+		{
+			itemCfg.loadFromString(inventory);
+		}
+		catch (InvalidConfigurationException e)
+		{
+			getPlugin().severe("Error when loading player %s's horses inventory", e, stable.getOwner());
+		}
+		
+		// Create ItemStacks for the horses inventory
+		for (Map<?, ?> itemMap : itemCfg.getMapList("i"))
+		{
+			int slot = -1;
+			
+			try
+			{
+				slot = (Integer) itemMap.get("slot");
+				
+			}
+			catch (NullPointerException e)
+			{
+				getPlugin().log(Level.SEVERE, "Player '%s' database data is corrupt: Inventory slot number was missing", e, stable.getOwner());
+				continue;
+			}
+			catch (ClassCastException e)
+			{
+				getPlugin().log(Level.SEVERE, "Player '%s' database data is corrupt: Inventory slot number was not a number", e, stable.getOwner());
+				continue;
+			}
+			
+			ItemStack item = ItemStack.deserialize((Map<String, Object>) itemMap);
+			
+			if (items == null)
+			{
+				items = new ArrayList<ItemStack>();
+			}
+			
+			// Fill in the gaps with nothing
+			while (items.size() <= slot)
+				items.add(null);
+			
+			items.set(slot, item);
+		}
+		
+		return items != null ? items.toArray(new ItemStack[items.size()]) : null;
+	}
+	
+	/**
+	 * Encodes the horse's inventory using {@link InventoryCodec}<br/>
+	 * 
+	 * If an item can't be encoded the inventory is stored as a YAML string instead
+	 * @param horse The horse whose inventory we want to encode
+	 * @return The encoded inventory
+	 */
+	protected byte[] encodeInventory(PlayerHorse horse)
+	{
+		// Inventories which have not been used since they were loaded are saved as they are
+		byte[] encoded = horse.getEncodedItems();
+		if (encoded != null)
+			return encoded;
+		
+		try
+		{
+			return InventoryCodec.encode(horse.getItems());
+		}
+		catch (IOException e)
+		{
+			getPlugin().severe("Failed to encode player %s's horse '%s' inventory, it will be saved as YAML", e, horse.getStable().getOwner(), horse.getName());
+			return getInventoryString(horse).getBytes(UTF8);
+		}
+	}
 	
-	public abstract boolean deleteHorse(PlayerHorse horse);
+	/**
+	 * Gives the horse an inventory created by {@link #encodeInventory(PlayerHorse)} or an
+	 * inventory string created by {@link #getInventoryString(PlayerHorse)}<br/>
+	 * 
+	 * Binary inventories are only decoded once the horse's items are used
+	 * @param horse The horse the inventory belongs to
+	 * @param data The encoded inventory
+	 */
+	protected void setInventory(PlayerHorse horse, byte[] data)
+	{
+		if (InventoryCodec.isEncoded(data))
+		{
+			horse.setEncodedItems(data);
+			return;
+		}
+		
+		ItemStack[] items = readInventoryString(horse.getStable(), new String(data, UTF8));
+		if (items != null)
+			horse.setItems(items);
+	}
 	
 	public void importHorses(HorseDatabaseStorageType type)
 	{
@@ -84,7 +514,14 @@ public abstract class HorseDatabase implements ForgeCore
 		if (db == null)
 			return;
 		
-		importStables(db.loadEverything());
+		StableImporter importer = new StableImporter(this);
+		db.loadEverything(importer);
+		importer.finish();
+		
+		db.close();
+		
+		// Cached stables may not match what was imported
+		offlineStables.clear();
 	}
 	
 	public Stable getPlayersStable(Player player)
@@ -94,34 +531,228 @@ public abstract class HorseDatabase implements ForgeCore
 	
 	public Stable getPlayersStable(Player player, boolean load)
 	{
-		Stable stable = playerStables.get(player.getName());
+		UUID playerId = player.getUniqueId();
 		String stableGroup = getPlugin().getHorsesConfig().getStableGroup(player.getWorld());
 		
-		// Check if a stable is loaded
-		if (stable != null && !stableGroup.equals(stable.getGroup()))
+		// Stables for other groups stay loaded while the player is online
+		String lastStableGroup = lastStableGroups.put(playerId, stableGroup);
+		if (lastStableGroup != null && !lastStableGroup.equals(stableGroup))
 		{
-			// If the stable is not in the same group as the one we want we unload it
-			// And load the new horses
-			unload(stable);
-			stable = null;
-			playerStables.remove(player.getName());
+			Stable lastStable = registry.getIfLoaded(playerId, lastStableGroup);
+			if (lastStable != null)
+				deactivate(lastStable);
 		}
 		
-		if (stable == null && load)
+		// Concurrent requests for the stable share the same load, including the one
+		// started while the player was logging in
+		if (load)
+			return registry.getOrLoad(player.getName(), playerId, stableGroup);
+		
+		return registry.get(playerId, stableGroup);
+	}
+	
+	/**
+	 * Starts loading the player's stable for the world's stable group in the background<br/>
+	 * 
+	 * Does nothing if the stable is already loaded or being loaded
+	 * @param player The player
+	 * @param world The world the player is moving to
+	 */
+	public void prefetchStable(Player player, World world)
+	{
+		String stableGroup = getPlugin().getHorsesConfig().getStableGroup(world);
+		
+		if (registry.contains(player.getUniqueId(), stableGroup))
+			return;
+		
+		Bukkit.getScheduler().runTaskAsynchronously(getPlugin(), registry.load(player.getName(), player.getUniqueId(), stableGroup));
+	}
+	
+	/**
+	 * Removes the active horse of a stable whose group the player has left
+	 */
+	private void deactivate(Stable stable)
+	{
+		getPlugin().getSummonCmd().cancelSummon(stable.getPlayerOwner());
+		
+		if (stable.getActiveHorse() != null)
 		{
-			stable = loadStable(player.getName(), stableGroup);
-			playerStables.put(player.getName(), stable);
+			stable.getActiveHorse().removeHorse();
 		}
+	}
+	
+	/**
+	 * Loads a players stable before they join the server<br/>
+	 * 
+	 * Should be called from the asynchronous pre-login thread. The world the player will join is
+	 * not known yet, so the stable group they were using when they last left and the group of
+	 * the spawn world are both loaded in one go. Whichever group the player doesn't join is
+	 * dropped when they join, and both are dropped if the player has not joined within a minute.
+	 * 
+	 * @param player The name of the player logging in
+	 * @param playerId The UUID of the player logging in
+	 */
+	public void preloadStable(String player, UUID playerId)
+	{
+		// A player who is still online keeps the stable they are using
+		if (registry.contains(playerId))
+			return;
+		
+		final List<String> stableGroups = new ArrayList<String>(2);
+		String quitGroup = quitStableGroups.get(playerId);
+		if (quitGroup != null)
+			stableGroups.add(quitGroup);
+		if (!spawnStableGroup.equals(quitGroup))
+			stableGroups.add(spawnStableGroup);
+		
+		preloadedGroups.put(playerId, stableGroups);
+		
+		// Groups which are already being loaded are not loaded twice
+		registry.loadAll(player, playerId, stableGroups);
 		
-		return stable;
+		// The player may be kicked or time out before joining
+		final UUID id = playerId;
+		new BukkitRunnable()
+		{
+			@Override
+			public void run()
+			{
+				if (preloadedGroups.remove(id, stableGroups))
+				{
+					for (String stableGroup : stableGroups)
+						discardPreload(id, stableGroup);
+				}
+			}
+		}.runTaskLater(getPlugin(), PRELOAD_TIMEOUT);
+	}
+	
+	/**
+	 * Hands the stable loaded during login to the player who has joined<br/>
+	 * 
+	 * Preloaded stables for groups other than the one the player joined are dropped
+	 * @param player The player who joined
+	 */
+	public void claimPreloadedStable(Player player)
+	{
+		List<String> stableGroups = preloadedGroups.remove(player.getUniqueId());
+		
+		if (stableGroups != null)
+		{
+			String joinedGroup = getPlugin().getHorsesConfig().getStableGroup(player.getWorld());
+			for (String stableGroup : stableGroups)
+			{
+				if (!stableGroup.equals(joinedGroup))
+					discardPreload(player.getUniqueId(), stableGroup);
+			}
+		}
+		
+		getPlayersStable(player, false);
+	}
+	
+	/**
+	 * Drops a stable which was loaded during login but not used<br/>
+	 * 
+	 * The stable is kept in the offline stable cache in case the player comes back
+	 */
+	private void discardPreload(UUID playerId, String stableGroup)
+	{
+		// The player may already be using the stable
+		if (stableGroup.equals(lastStableGroups.get(playerId)))
+			return;
+		
+		Stable stable = registry.discard(playerId, stableGroup);
+		
+		if (stable != null)
+			offlineStables.put(stable);
+	}
+	
+	/**
+	 * Discards a stable loaded for a player who did not end up joining
+	 * @param player The player who was denied
+	 */
+	public void discardPreloadedStable(Player player)
+	{
+		// The player may have been denied because they are already online
+		Player online = Bukkit.getPlayer(player.getUniqueId());
+		if (online == null || online == player)
+		{
+			preloadedGroups.remove(player.getUniqueId());
+			registry.discard(player.getUniqueId());
+		}
+	}
+	
+	/**
+	 * Stops keeping the stables of players who have left in memory<br/>
+	 * 
+	 * Backends whose data can be changed by other servers should call this while they are
+	 * being created unless the cache has been enabled, as a cached stable could be out of date.
+	 */
+	protected void disableOfflineStableCache()
+	{
+		offlineStables = new OfflineStableCache(0, 0);
+	}
+	
+	/**
+	 * @return The cache of offline players' stables
+	 */
+	public OfflineStableCache getOfflineStableCache()
+	{
+		return offlineStables;
+	}
+	
+	/**
+	 * @return The stables of online players
+	 */
+	public StableRegistry getStableRegistry()
+	{
+		return registry;
 	}
 	
 	public void saveAll()
 	{
-		for (Stable stable : playerStables.values().toArray(new Stable[playerStables.size()]))
+		List<Stable> stables = registry.getLoaded();
+		
+		for (Stable stable : stables)
 		{
-			unload(stable);
+			unload(stable, false);
+		}
+		
+		// Include changed stables which are no longer loaded but have not been saved yet
+		LinkedHashSet<Stable> unsaved = new LinkedHashSet<Stable>(dirtyStables);
+		unsaved.removeAll(stables);
+		stables.addAll(unsaved);
+		
+		for (Stable stable : stables)
+		{
+			stable.clearDirty();
 		}
+		dirtyStables.clear();
+		
+		// Write every stable together so the database can save them in bulk
+		if (writeQueue != null)
+		{
+			writeQueue.saveStables(stables);
+			writeQueue.flush();
+		}
+		else
+		{
+			saveStables(stables);
+			sync();
+		}
+	}
+	
+	/**
+	 * Releases any resources held by the database<br/>
+	 * 
+	 * Called once the database is no longer going to be used
+	 */
+	public void close()
+	{
+		if (writeQueue != null)
+			writeQueue.close();
+		
+		if (offlineStables.getHits() + offlineStables.getMisses() > 0)
+			getPlugin().info("Offline stable cache: %d hits, %d misses, %d evictions", offlineStables.getHits(), offlineStables.getMisses(), offlineStables.getEvictions());
 	}
 	
 	@Override
@@ -135,7 +766,33 @@ public abstract class HorseDatabase implements ForgeCore
 		return dbType;
 	}
 
+	/**
+	 * Unloads every one of the player's stables
+	 * @param player The player who is leaving
+	 */
+	public void unloadPlayer(Player player)
+	{
+		for (Stable stable : registry.getLoaded(player.getUniqueId()))
+		{
+			unload(stable);
+		}
+		
+		// Drop any stables which are still being loaded
+		registry.discard(player.getUniqueId());
+		preloadedGroups.remove(player.getUniqueId());
+		
+		// Remember the group so the player's next login loads the right stable
+		String stableGroup = lastStableGroups.remove(player.getUniqueId());
+		if (stableGroup != null)
+			quitStableGroups.put(player.getUniqueId(), stableGroup);
+	}
+	
 	public void unload(Stable stable)
+	{
+		unload(stable, true);
+	}
+	
+	private void unload(Stable stable, boolean save)
 	{
 		getPlugin().getSummonCmd().cancelSummon(stable.getPlayerOwner());
 		
@@ -144,7 +801,17 @@ public abstract class HorseDatabase implements ForgeCore
 			stable.getActiveHorse().removeHorse();
 		}
 		
-		saveStable(stable);
-		playerStables.remove(stable.getOwner());
+		if (save)
+			writeStable(stable);
+		registry.remove(stable);
+		offlineStables.put(stable);
+	}
+	
+	/**
+	 * Receives stables as they are read by {@link HorseDatabase#loadEverything(StableVisitor)}
+	 */
+	protected interface StableVisitor
+	{
+		public void visit(Stable stable);
 	}
 }
@@ -49,7 +49,17 @@ public enum HorseDatabaseStorageType
 	/**
 	 * Uses a MySQL database to store Horse/Stable data for each player
 	 */
-	MYSQL(MysqlDatabase.class);
+	MYSQL(MysqlDatabase.class),
+	
+	/**
+	 * Uses a SQLite database file to store Horse/Stable data for each player
+	 */
+	SQLITE(SqliteDatabase.class),
+	
+	/**
+	 * Appends Horse/Stable changes to a log of files which is compacted in the background
+	 */
+	LOG(LogDatabase.class);
 	
 	private final Class<? extends HorseDatabase> clazz;
 	
@@ -0,0 +1,1038 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.forgenz.horses.HorseType;
+import com.forgenz.horses.Horses;
+import com.forgenz.horses.PlayerHorse;
+import com.forgenz.horses.Stable;
+import com.forgenz.horses.config.AbstractConfig;
+
+/**
+ * Stores horses and stables as records appended to a log of segment files<br/>
+ * 
+ * Every save appends a single record to the newest segment and the location of the
+ * latest record for each stable and horse is kept in memory. Older segments are
+ * compacted in the background by copying only their current records into a new segment.
+ * The log is forced to the disk after each batch of writes.
+ */
+public class LogDatabase extends HorseDatabase
+{
+	private static final Pattern SEGMENT_NAME = Pattern.compile("^(\\d{8})\\.log$");
+	private static final String TMP_SUFFIX = ".tmp";
+	
+	/** Compact whenever there are this many segments, even if they have little unused data */
+	private static final int MAX_SEGMENTS = 16;
+	
+	private static final byte STABLE = 1;
+	private static final byte STABLE_DELETED = 2;
+	private static final byte HORSE = 3;
+	private static final byte HORSE_DELETED = 4;
+	
+	private final File folder;
+	private final long segmentSize;
+	private final double compactRatio;
+	
+	private final Object lock = new Object();
+	private final Object compactLock = new Object();
+	
+	private final TreeMap<Integer, LogSegment> segments = new TreeMap<Integer, LogSegment>();
+	private LogSegment active;
+	private int nextSegmentId;
+	
+	private final HashMap<Integer, StableEntry> stables = new HashMap<Integer, StableEntry>();
+	private final HashMap<Integer, HorseEntry> horses = new HashMap<Integer, HorseEntry>();
+	/** Stables by their group and owner's UUID or lower case name */
+	private final HashMap<String, StableEntry> stableKeys = new HashMap<String, StableEntry>();
+	
+	private long nextSeq = 1;
+	private int nextStableId = 1;
+	private int nextHorseId = 1;
+	
+	private final long compactInterval;
+	private BukkitTask compaction;
+	private volatile boolean closed = false;
+	
+	public LogDatabase(Horses plugin) throws IOException
+	{
+		super(plugin, HorseDatabaseStorageType.LOG);
+		
+		LogSettings settings = new LogSettings(plugin);
+		folder = new File(plugin.getDataFolder(), settings.folder);
+		segmentSize = settings.segmentSize * 1024L * 1024L;
+		compactRatio = settings.compactRatio / 100.0;
+		compactInterval = settings.compactInterval * 60L * 20L;
+		
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Failed to create the folder " + folder);
+		
+		synchronized (lock)
+		{
+			readSegments();
+		}
+	}
+	
+	@Override
+	public void open()
+	{
+		if (compaction != null)
+			return;
+		
+		compaction = new BukkitRunnable()
+		{
+			@Override
+			public void run()
+			{
+				compact();
+			}
+		}.runTaskTimerAsynchronously(getPlugin(), compactInterval, compactInterval);
+	}
+	
+	/**
+	 * Reads every segment to build the index and starts a new segment for this session
+	 */
+	private void readSegments() throws IOException
+	{
+		int lastId = 0;
+		
+		File[] files = folder.listFiles();
+		if (files == null)
+			throw new IOException("Failed to list the files in " + folder);
+		
+		for (File file : files)
+		{
+			// Left behind by a compaction which did not finish
+			if (file.getName().endsWith(TMP_SUFFIX))
+			{
+				Files.delete(file.toPath());
+				continue;
+			}
+			
+			Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+			if (!matcher.matches())
+				continue;
+			
+			int id = Integer.parseInt(matcher.group(1));
+			segments.put(id, LogSegment.open(file, id));
+			lastId = Math.max(lastId, id);
+		}
+		
+		// Remove segments which were compacted but not removed before the server stopped
+		for (LogSegment segment : new ArrayList<LogSegment>(segments.values()))
+		{
+			for (int id : segment.getReplaced())
+			{
+				lastId = Math.max(lastId, id);
+				
+				LogSegment replaced = segments.remove(id);
+				if (replaced != null)
+					replaced.delete();
+			}
+		}
+		
+		nextSegmentId = lastId + 1;
+		
+		for (final LogSegment segment : segments.values())
+		{
+			boolean complete = segment.replay(new LogSegment.RecordVisitor()
+			{
+				@Override
+				public void visit(long offset, byte[] payload) throws IOException
+				{
+					replay(segment, offset, payload);
+				}
+			});
+			
+			if (!complete)
+				getPlugin().warning("Removed a partly written record from the end of %s", segment.getFile().getName());
+		}
+		
+		finishReplay();
+		
+		// Segments from sessions which did not save anything are not needed
+		for (Iterator<LogSegment> it = segments.values().iterator(); it.hasNext();)
+		{
+			LogSegment segment = it.next();
+			if (segment.getRecordSize() == 0)
+			{
+				it.remove();
+				segment.delete();
+			}
+		}
+		
+		active = createSegment();
+		
+		getPlugin().info("Loaded %d stables and %d horses from %d log segments", stables.size(), horses.size(), segments.size());
+	}
+	
+	private void replay(LogSegment segment, long offset, byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		
+		byte type = in.readByte();
+		long seq = in.readLong();
+		int id = in.readInt();
+		
+		nextSeq = Math.max(nextSeq, seq + 1);
+		
+		long location = toLocation(segment.getId(), offset);
+		int length = LogSegment.FRAME_HEADER + payload.length;
+		
+		Entry entry;
+		
+		switch (type)
+		{
+		case STABLE:
+		case STABLE_DELETED:
+			nextStableId = Math.max(nextStableId, id + 1);
+			
+			StableEntry stable = stables.get(id);
+			// Records copied by compaction can be older than records in other segments
+			if (stable != null && stable.seq >= seq)
+				return;
+			
+			if (stable == null)
+			{
+				stable = new StableEntry(id);
+				stables.put(id, stable);
+			}
+			
+			if (type == STABLE)
+			{
+				stable.group = in.readUTF();
+				stable.owner = in.readUTF();
+				stable.ownerId = in.readBoolean() ? new UUID(in.readLong(), in.readLong()) : null;
+			}
+			
+			entry = stable;
+			break;
+		case HORSE:
+		case HORSE_DELETED:
+			nextHorseId = Math.max(nextHorseId, id + 1);
+			
+			HorseEntry horse = horses.get(id);
+			if (horse != null && horse.seq >= seq)
+				return;
+			
+			if (horse == null)
+			{
+				horse = new HorseEntry();
+				horses.put(id, horse);
+			}
+			
+			if (type == HORSE)
+				horse.stableId = in.readInt();
+			
+			entry = horse;
+			break;
+		default:
+			throw new IOException(String.format("Unknown record type %d in %s", type, segment.getFile().getName()));
+		}
+		
+		release(entry);
+		entry.set(seq, location, length, type == STABLE_DELETED || type == HORSE_DELETED);
+		segment.addLive(length);
+	}
+	
+	/**
+	 * Removes deleted records from the index and links horses to their stables
+	 */
+	private void finishReplay()
+	{
+		for (Iterator<StableEntry> it = stables.values().iterator(); it.hasNext();)
+		{
+			StableEntry stable = it.next();
+			
+			if (stable.deleted)
+			{
+				release(stable);
+				it.remove();
+			}
+		}
+		
+		for (Iterator<HashMap.Entry<Integer, HorseEntry>> it = horses.entrySet().iterator(); it.hasNext();)
+		{
+			HashMap.Entry<Integer, HorseEntry> mapEntry = it.next();
+			HorseEntry horse = mapEntry.getValue();
+			StableEntry stable = horse.deleted ? null : stables.get(horse.stableId);
+			
+			if (stable == null)
+			{
+				release(horse);
+				it.remove();
+				continue;
+			}
+			
+			stable.horses.add(mapEntry.getKey());
+		}
+		
+		for (StableEntry stable : stables.values())
+		{
+			addKeys(stable);
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		super.close();
+		
+		closed = true;
+		if (compaction != null)
+			compaction.cancel();
+		
+		// Wait for a running compaction to finish
+		synchronized (compactLock)
+		{
+			synchronized (lock)
+			{
+				for (LogSegment segment : segments.values())
+				{
+					try
+					{
+						segment.sync();
+						segment.close();
+					}
+					catch (IOException e)
+					{
+						getPlugin().severe("Failed to close the log segment %s", e, segment.getFile().getName());
+					}
+				}
+				segments.clear();
+			}
+		}
+	}
+	
+	@Override
+	protected void sync()
+	{
+		synchronized (lock)
+		{
+			if (closed)
+				return;
+			
+			try
+			{
+				active.sync();
+			}
+			catch (IOException e)
+			{
+				getPlugin().severe("Failed to write the horse log to the disk", e);
+			}
+		}
+	}
+	
+	@Override
+	protected void loadEverything(StableVisitor visitor)
+	{
+		ArrayList<StableEntry> entries;
+		synchronized (lock)
+		{
+			entries = new ArrayList<StableEntry>(stables.values());
+		}
+		
+		for (StableEntry entry : entries)
+		{
+			Stable stable;
+			synchronized (lock)
+			{
+				// The stable may have been deleted since
+				if (stables.get(entry.id) != entry)
+					continue;
+				
+				stable = new Stable(getPlugin(), entry.group, entry.owner, entry.ownerId, entry.id);
+			}
+			
+			readStable(stable, entry);
+			visitor.visit(stable);
+		}
+	}
+	
+	@Override
+	protected void importStables(List<Stable> stables)
+	{
+		for (Stable stable : stables)
+		{
+			// Stables are stored for each group so owners can't share an ID
+			stable.setId(-1);
+			saveStable(stable);
+			
+			for (PlayerHorse horse : stable)
+			{
+				saveHorseData(horse);
+			}
+		}
+	}
+	
+	@Override
+	protected Stable loadStable(String player, UUID playerId, String stableGroup)
+	{
+		StableEntry entry;
+		synchronized (lock)
+		{
+			entry = findStable(player, playerId, stableGroup);
+		}
+		
+		Stable stable = new Stable(getPlugin(), stableGroup, player, playerId, entry != null ? entry.id : -1);
+		
+		if (entry != null)
+			readStable(stable, entry);
+		
+		return stable;
+	}
+	
+	/**
+	 * Adds the stable's horses and last active horse from the log
+	 */
+	private void readStable(Stable stable, StableEntry entry)
+	{
+		byte[] stableRecord;
+		ArrayList<byte[]> horseRecords = new ArrayList<byte[]>();
+		
+		try
+		{
+			// Only the reads need the lock, the records are decoded afterwards
+			synchronized (lock)
+			{
+				// The stable may have been deleted since it was found
+				if (stables.get(entry.id) != entry)
+					return;
+				
+				stableRecord = read(entry);
+				
+				for (int horseId : entry.horses)
+				{
+					horseRecords.add(read(horses.get(horseId)));
+				}
+			}
+			
+			for (byte[] record : horseRecords)
+			{
+				stable.addHorse(readHorse(stable, record));
+			}
+			
+			DataInputStream in = openRecord(stableRecord);
+			in.readUTF();
+			in.readUTF();
+			if (in.readBoolean())
+			{
+				in.readLong();
+				in.readLong();
+			}
+			
+			String lastActive = in.readUTF();
+			if (!lastActive.isEmpty())
+				stable.setLastActiveHorse(stable.findHorse(lastActive, true));
+		}
+		catch (IOException e)
+		{
+			getPlugin().severe("Failed to read the player %s's stable from the horse log", e, stable.getOwner());
+		}
+	}
+	
+	private PlayerHorse readHorse(Stable stable, byte[] record) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		in.readByte();
+		in.readLong();
+		int id = in.readInt();
+		in.readInt();
+		
+		String name = in.readUTF();
+		HorseType type = HorseType.exactValueOf(in.readUTF());
+		long lastDeath = in.readLong();
+		double maxHealth = in.readDouble();
+		double health = in.readDouble();
+		double speed = in.readDouble();
+		double jumpStrength = in.readDouble();
+		boolean hasChest = in.readBoolean() && (type == HorseType.Mule || type == HorseType.Donkey);
+		
+		byte[] inventory = new byte[in.readInt()];
+		in.readFully(inventory);
+		
+		PlayerHorse horse = new PlayerHorse(getPlugin(), stable, name, type, maxHealth, health, speed, jumpStrength, null, id);
+		horse.setLastDeath(lastDeath);
+		
+		setInventory(horse, inventory);
+		
+		horse.setHasChest(hasChest);
+		
+		return horse;
+	}
+	
+	@Override
+	protected void saveStable(Stable stable)
+	{
+		synchronized (lock)
+		{
+			try
+			{
+				if (stable.getHorseCount() > 0)
+				{
+					writeStable(stable);
+				}
+				else if (stable.getId() != -1)
+				{
+					deleteStable(stable);
+				}
+			}
+			catch (IOException e)
+			{
+				getPlugin().severe("Failed to save the player %s's stable to the horse log", e, stable.getOwner());
+			}
+		}
+	}
+	
+	@Override
+	protected void saveHorseData(PlayerHorse horse)
+	{
+		synchronized (lock)
+		{
+			try
+			{
+				Stable stable = horse.getStable();
+				
+				// The horse's stable must be in the log first
+				if (stable.getId() == -1 || !stables.containsKey(stable.getId()))
+					writeStable(stable);
+				
+				if (horse.getId() == -1)
+					horse.setId(nextHorseId++);
+				
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = startRecord(bytes, HORSE, horse.getId());
+				out.writeInt(stable.getId());
+				out.writeUTF(COLOUR_CHAR_REPLACE.matcher(horse.getDisplayName()).replaceAll("&"));
+				out.writeUTF(horse.getType().toString());
+				out.writeLong(horse.getLastDeath());
+				out.writeDouble(horse.getMaxHealth());
+				out.writeDouble(horse.getHealth());
+				out.writeDouble(horse.getSpeed());
+				out.writeDouble(horse.getJumpStrength());
+				out.writeBoolean(horse.hasChest());
+				
+				byte[] inventory = encodeInventory(horse);
+				out.writeInt(inventory.length);
+				out.write(inventory);
+				
+				HorseEntry entry = horses.get(horse.getId());
+				if (entry == null)
+				{
+					entry = new HorseEntry();
+					horses.put(horse.getId(), entry);
+				}
+				entry.stableId = stable.getId();
+				
+				append(entry, bytes.toByteArray());
+				stables.get(stable.getId()).horses.add(horse.getId());
+			}
+			catch (IOException e)
+			{
+				getPlugin().severe("Failed to save the player %s's horse '%s' to the horse log", e, horse.getStable().getOwner(), horse.getName());
+			}
+		}
+	}
+	
+	@Override
+	protected boolean deleteHorseData(PlayerHorse horse)
+	{
+		// If the horse has not been added to the log yet there is nothing to delete
+		if (horse.getId() == -1)
+			return true;
+		
+		synchronized (lock)
+		{
+			HorseEntry entry = horses.get(horse.getId());
+			if (entry == null)
+				return true;
+			
+			try
+			{
+				appendDeleted(HORSE_DELETED, horse.getId());
+			}
+			catch (IOException e)
+			{
+				getPlugin().severe("Failed to delete the player %s's horse '%s' from the horse log", e, horse.getStable().getOwner(), horse.getName());
+				return false;
+			}
+			
+			horses.remove(horse.getId());
+			release(entry);
+			
+			StableEntry stable = stables.get(entry.stableId);
+			if (stable != null)
+				stable.horses.remove(horse.getId());
+		}
+		
+		return true;
+	}
+	
+	private void writeStable(Stable stable) throws IOException
+	{
+		if (stable.getId() == -1)
+			stable.setId(nextStableId++);
+		else
+			nextStableId = Math.max(nextStableId, stable.getId() + 1);
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = startRecord(bytes, STABLE, stable.getId());
+		out.writeUTF(stable.getGroup());
+		out.writeUTF(stable.getOwner());
+		out.writeBoolean(stable.getOwnerId() != null);
+		if (stable.getOwnerId() != null)
+		{
+			out.writeLong(stable.getOwnerId().getMostSignificantBits());
+			out.writeLong(stable.getOwnerId().getLeastSignificantBits());
+		}
+		out.writeUTF(stable.getLastActiveHorse() != null ? stable.getLastActiveHorse().getName() : "");
+		
+		StableEntry entry = stables.get(stable.getId());
+		if (entry == null)
+		{
+			entry = new StableEntry(stable.getId());
+			stables.put(stable.getId(), entry);
+		}
+		
+		append(entry, bytes.toByteArray());
+		
+		// The owner's name or UUID may have changed
+		removeKeys(entry);
+		entry.group = stable.getGroup();
+		entry.owner = stable.getOwner();
+		entry.ownerId = stable.getOwnerId();
+		addKeys(entry);
+	}
+	
+	private void deleteStable(Stable stable) throws IOException
+	{
+		StableEntry entry = stables.get(stable.getId());
+		
+		if (entry != null)
+		{
+			appendDeleted(STABLE_DELETED, stable.getId());
+			
+			stables.remove(stable.getId());
+			removeKeys(entry);
+			release(entry);
+		}
+		
+		// The stable is added again if the player gets a new horse
+		stable.setId(-1);
+	}
+	
+	/**
+	 * Finds the player's stable, preferring a stable saved with the player's UUID
+	 */
+	private StableEntry findStable(String player, UUID playerId, String stableGroup)
+	{
+		if (playerId != null)
+		{
+			StableEntry entry = stableKeys.get(key(stableGroup, playerId.toString()));
+			if (entry != null)
+				return entry;
+		}
+		
+		StableEntry entry = stableKeys.get(key(stableGroup, player.toLowerCase()));
+		
+		// The name may now belong to a different player
+		if (entry != null && playerId != null && entry.ownerId != null && !playerId.equals(entry.ownerId))
+			return null;
+		
+		return entry;
+	}
+	
+	private void addKeys(StableEntry entry)
+	{
+		if (entry.ownerId != null)
+			stableKeys.put(key(entry.group, entry.ownerId.toString()), entry);
+		
+		// Keep the newest stable for a name which has been used by more than one player
+		String nameKey = key(entry.group, entry.owner.toLowerCase());
+		StableEntry existing = stableKeys.get(nameKey);
+		if (existing == null || existing.seq < entry.seq)
+			stableKeys.put(nameKey, entry);
+	}
+	
+	private void removeKeys(StableEntry entry)
+	{
+		if (entry.group == null)
+			return;
+		
+		if (entry.ownerId != null)
+			removeKey(key(entry.group, entry.ownerId.toString()), entry);
+		removeKey(key(entry.group, entry.owner.toLowerCase()), entry);
+	}
+	
+	private void removeKey(String key, StableEntry entry)
+	{
+		if (stableKeys.get(key) == entry)
+			stableKeys.remove(key);
+	}
+	
+	private static String key(String stableGroup, String owner)
+	{
+		return stableGroup + ':' + owner;
+	}
+	
+	private DataOutputStream startRecord(ByteArrayOutputStream bytes, byte type, int id) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeLong(nextSeq++);
+		out.writeInt(id);
+		return out;
+	}
+	
+	/**
+	 * Opens a stable or horse record, skipping the fields every record starts with
+	 */
+	private static DataInputStream openRecord(byte[] record) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		in.readByte();
+		in.readLong();
+		in.readInt();
+		return in;
+	}
+	
+	private void appendDeleted(byte type, int id) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		startRecord(bytes, type, id);
+		
+		// Deletions are never read again so they don't count as current data
+		appendRecord(bytes.toByteArray());
+	}
+	
+	/**
+	 * Appends the new record for a stable or horse, replacing its previous record
+	 */
+	private void append(Entry entry, byte[] record) throws IOException
+	{
+		long location = appendRecord(record);
+		int length = LogSegment.FRAME_HEADER + record.length;
+		
+		release(entry);
+		entry.set(nextSeq - 1, location, length, false);
+		// The record may have filled the segment before it
+		segments.get(getSegmentId(location)).addLive(length);
+	}
+	
+	private long appendRecord(byte[] record) throws IOException
+	{
+		if (closed)
+			throw new IOException("The horse log has been closed");
+		
+		long location = toLocation(active.getId(), active.append(record));
+		
+		// Start a new segment once the current one is full
+		if (active.getSize() >= segmentSize)
+		{
+			active.sync();
+			active = createSegment();
+		}
+		
+		return location;
+	}
+	
+	private byte[] read(Entry entry) throws IOException
+	{
+		return segments.get(getSegmentId(entry.location)).read(getOffset(entry.location));
+	}
+	
+	/**
+	 * Marks the entry's current record as no longer being used
+	 */
+	private void release(Entry entry)
+	{
+		if (entry.location == -1)
+			return;
+		
+		LogSegment segment = segments.get(getSegmentId(entry.location));
+		if (segment != null)
+			segment.removeLive(entry.length);
+		
+		entry.location = -1;
+	}
+	
+	private LogSegment createSegment() throws IOException
+	{
+		int id = nextSegmentId++;
+		LogSegment segment = LogSegment.create(new File(folder, getSegmentName(id)), id);
+		segments.put(id, segment);
+		return segment;
+	}
+	
+	/**
+	 * Copies the current records from every full segment into a new segment and removes
+	 * the full segments<br/>
+	 * 
+	 * Records are copied without holding the lock so saves are not held up. Records saved
+	 * again while they are being copied keep their new location.
+	 */
+	private void compact()
+	{
+		synchronized (compactLock)
+		{
+			if (closed)
+				return;
+			
+			TreeMap<Integer, LogSegment> compacting = new TreeMap<Integer, LogSegment>();
+			ArrayList<Entry> entries = new ArrayList<Entry>();
+			long[] locations;
+			int id;
+			long before = 0;
+			
+			synchronized (lock)
+			{
+				long size = 0, live = 0;
+				
+				for (LogSegment segment : segments.values())
+				{
+					if (segment == active)
+						continue;
+					
+					compacting.put(segment.getId(), segment);
+					size += segment.getRecordSize();
+					live += segment.getLive();
+				}
+				
+				long unused = size - live;
+				if (compacting.isEmpty() || ((unused == 0 || unused < size * compactRatio) && compacting.size() < MAX_SEGMENTS))
+					return;
+				
+				before = size;
+				
+				collectEntries(stables.values(), compacting, entries);
+				collectEntries(horses.values(), compacting, entries);
+				
+				locations = new long[entries.size()];
+				for (int i = 0; i < locations.length; ++i)
+					locations[i] = entries.get(i).location;
+				
+				id = nextSegmentId++;
+			}
+			
+			int[] replaced = new int[compacting.size()];
+			int i = 0;
+			for (int replacedId : compacting.keySet())
+				replaced[i++] = replacedId;
+			
+			File tmp = new File(folder, getSegmentName(id) + TMP_SUFFIX);
+			File file = new File(folder, getSegmentName(id));
+			long[] moved = new long[locations.length];
+			LogSegment compacted;
+			
+			try
+			{
+				LogSegment output = LogSegment.create(tmp, id, replaced);
+				try
+				{
+					for (i = 0; i < locations.length; ++i)
+					{
+						byte[] record = compacting.get(getSegmentId(locations[i])).read(getOffset(locations[i]));
+						moved[i] = toLocation(id, output.append(record));
+					}
+					
+					output.sync();
+				}
+				finally
+				{
+					output.close();
+				}
+				
+				try
+				{
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch (AtomicMoveNotSupportedException e)
+				{
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				
+				compacted = LogSegment.open(file, id);
+			}
+			catch (IOException e)
+			{
+				getPlugin().severe("Failed to compact the horse log", e);
+				tmp.delete();
+				return;
+			}
+			
+			synchronized (lock)
+			{
+				segments.put(id, compacted);
+				
+				for (i = 0; i < moved.length; ++i)
+				{
+					Entry entry = entries.get(i);
+					
+					if (entry.location == locations[i])
+					{
+						entry.location = moved[i];
+						compacted.addLive(entry.length);
+					}
+				}
+				
+				for (LogSegment segment : compacting.values())
+				{
+					segments.remove(segment.getId());
+					
+					try
+					{
+						segment.delete();
+					}
+					catch (IOException e)
+					{
+						getPlugin().severe("Failed to delete the compacted log segment %s", e, segment.getFile().getName());
+					}
+				}
+			}
+			
+			getPlugin().info("Compacted %d log segments from %d KB to %d KB", replaced.length, before / 1024, compacted.getRecordSize() / 1024);
+		}
+	}
+	
+	private static void collectEntries(Iterable<? extends Entry> index, TreeMap<Integer, LogSegment> compacting, List<Entry> entries)
+	{
+		for (Entry entry : index)
+		{
+			if (compacting.containsKey(getSegmentId(entry.location)))
+				entries.add(entry);
+		}
+	}
+	
+	private static String getSegmentName(int id)
+	{
+		return String.format("%08d.log", id);
+	}
+	
+	private static long toLocation(int segmentId, long offset)
+	{
+		return ((long) segmentId << 40) | offset;
+	}
+	
+	private static int getSegmentId(long location)
+	{
+		return (int) (location >>> 40);
+	}
+	
+	private static long getOffset(long location)
+	{
+		return location & ((1L << 40) - 1);
+	}
+	
+	/**
+	 * The location of the latest record for a stable or horse
+	 */
+	private static class Entry
+	{
+		public long seq;
+		public long location = -1;
+		public int length;
+		public boolean deleted;
+		
+		public void set(long seq, long location, int length, boolean deleted)
+		{
+			this.seq = seq;
+			this.location = location;
+			this.length = length;
+			this.deleted = deleted;
+		}
+	}
+	
+	private static class StableEntry extends Entry
+	{
+		public final int id;
+		public String group;
+		public String owner;
+		public UUID ownerId;
+		
+		/** The IDs of the stable's horses, in the order they were created */
+		public final TreeSet<Integer> horses = new TreeSet<Integer>();
+		
+		public StableEntry(int id)
+		{
+			this.id = id;
+		}
+	}
+	
+	private static class HorseEntry extends Entry
+	{
+		public int stableId;
+	}
+	
+	private class LogSettings extends AbstractConfig
+	{
+		public final String folder;
+		
+		public final int segmentSize;
+		public final int compactInterval;
+		public final int compactRatio;
+		
+		protected LogSettings(Horses plugin)
+		{
+			super(plugin, null, null, "log");
+			
+			this.loadConfiguration();
+			
+			this.addResourseToHeader("header_log.txt");
+			
+			folder = getAndSet("Folder", "horselog", String.class);
+			
+			segmentSize = Math.max(1, getAndSet("SegmentSize", 8, Number.class).intValue());
+			compactInterval = Math.max(1, getAndSet("CompactInterval", 10, Number.class).intValue());
+			compactRatio = Math.min(100, Math.max(1, getAndSet("CompactRatio", 50, Number.class).intValue()));
+			
+			this.saveConfiguration();
+		}
+	}
+}
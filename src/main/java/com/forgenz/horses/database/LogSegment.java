@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+/**
+ * A single file of the horse log<br/>
+ * 
+ * Records are only ever appended to the end of the file. Each record is stored with its
+ * length and a checksum so a record which was only partly written when the server
+ * stopped can be found and cut off. A segment created by compaction lists the segments
+ * it replaced so they can be removed if the server stopped before removing them.
+ */
+class LogSegment
+{
+	private static final int MAGIC = 0x484C4F47;
+	/** The length and checksum written before each record */
+	public static final int FRAME_HEADER = 8;
+	
+	private final int id;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	
+	private final int[] replaced;
+	private final int headerSize;
+	
+	private long size;
+	/** The number of bytes used by records which are still current */
+	private long live = 0;
+	
+	private LogSegment(int id, File file, RandomAccessFile raf, int[] replaced)
+	{
+		this.id = id;
+		this.file = file;
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.replaced = replaced;
+		this.headerSize = 8 + replaced.length * 4;
+	}
+	
+	/**
+	 * Creates a new empty segment
+	 * @param file The file to create
+	 * @param id The ID of the segment
+	 * @param replaced The IDs of the segments whose records this segment replaces
+	 */
+	public static LogSegment create(File file, int id, int... replaced) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		LogSegment segment = new LogSegment(id, file, raf, replaced);
+		
+		try
+		{
+			raf.setLength(0);
+			
+			ByteBuffer header = ByteBuffer.allocate(segment.headerSize);
+			header.putInt(MAGIC);
+			header.putInt(replaced.length);
+			for (int replacedId : replaced)
+				header.putInt(replacedId);
+			header.flip();
+			
+			segment.write(header, 0);
+			segment.size = segment.headerSize;
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+		
+		return segment;
+	}
+	
+	/**
+	 * Opens an existing segment
+	 * @param file The segment's file
+	 * @param id The ID of the segment
+	 */
+	public static LogSegment open(File file, int id) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try
+		{
+			if (raf.length() < 8 || raf.readInt() != MAGIC)
+				throw new IOException("The file " + file + " is not a horse log segment");
+			
+			int count = raf.readInt();
+			if (count < 0 || raf.length() < 8 + count * 4L)
+				throw new IOException("The header of " + file + " is corrupt");
+			
+			int[] replaced = new int[count];
+			for (int i = 0; i < count; ++i)
+				replaced[i] = raf.readInt();
+			
+			LogSegment segment = new LogSegment(id, file, raf, replaced);
+			segment.size = raf.length();
+			
+			return segment;
+		}
+		catch (IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+	
+	public int getId()
+	{
+		return id;
+	}
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * @return The IDs of the segments this segment was compacted from
+	 */
+	public int[] getReplaced()
+	{
+		return replaced;
+	}
+	
+	public long getSize()
+	{
+		return size;
+	}
+	
+	/**
+	 * @return The number of bytes used by records
+	 */
+	public long getRecordSize()
+	{
+		return size - headerSize;
+	}
+	
+	public long getLive()
+	{
+		return live;
+	}
+	
+	public void addLive(int length)
+	{
+		live += length;
+	}
+	
+	public void removeLive(int length)
+	{
+		live -= length;
+	}
+	
+	/**
+	 * Appends a record to the end of the segment
+	 * @param payload The record
+	 * @return The offset of the record
+	 */
+	public long append(byte[] payload) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt(checksum(payload));
+		buffer.put(payload);
+		buffer.flip();
+		
+		long offset = size;
+		write(buffer, offset);
+		size += buffer.limit();
+		
+		return offset;
+	}
+	
+	/**
+	 * Reads the record at the given offset<br/>
+	 * 
+	 * Records can be read from any thread
+	 * @param offset The offset returned when the record was appended
+	 * @return The record
+	 */
+	public byte[] read(long offset) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		read(header, offset);
+		header.flip();
+		
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+		read(payload, offset + FRAME_HEADER);
+		
+		return payload.array();
+	}
+	
+	/**
+	 * Reads every record in the segment in the order they were written<br/>
+	 * 
+	 * If the last record was not completely written it is removed from the file
+	 * @param visitor Receives each record
+	 * @return False if a damaged record was removed
+	 */
+	public boolean replay(RecordVisitor visitor) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		long offset = headerSize;
+		
+		while (offset + FRAME_HEADER <= size)
+		{
+			header.clear();
+			read(header, offset);
+			header.flip();
+			
+			int length = header.getInt();
+			int checksum = header.getInt();
+			
+			if (length < 0 || offset + FRAME_HEADER + length > size)
+				break;
+			
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			read(payload, offset + FRAME_HEADER);
+			
+			if (checksum(payload.array()) != checksum)
+				break;
+			
+			visitor.visit(offset, payload.array());
+			offset += FRAME_HEADER + length;
+		}
+		
+		if (offset == size)
+			return true;
+		
+		channel.truncate(offset);
+		size = offset;
+		return false;
+	}
+	
+	/**
+	 * Forces every record to be written to the disk
+	 */
+	public void sync() throws IOException
+	{
+		channel.force(false);
+	}
+	
+	public void close() throws IOException
+	{
+		raf.close();
+	}
+	
+	/**
+	 * Closes and deletes the segment
+	 */
+	public void delete() throws IOException
+	{
+		raf.close();
+		Files.deleteIfExists(file.toPath());
+	}
+	
+	private void write(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+	
+	private void read(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Unexpected end of " + file);
+		}
+	}
+	
+	private static int checksum(byte[] payload)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * Receives records as they are read by {@link LogSegment#replay(RecordVisitor)}
+	 */
+	public interface RecordVisitor
+	{
+		public void visit(long offset, byte[] payload) throws IOException;
+	}
+}
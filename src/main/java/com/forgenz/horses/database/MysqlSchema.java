@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+import com.forgenz.horses.Horses;
+
+/**
+ * Keeps the MySQL tables up to date using an ordered list of versioned migrations<br/>
+ * 
+ * The version of the schema is stored in the `HorsesSchema` table and only migrations newer
+ * than the stored version are run. An up to date database only needs a single query to check.
+ */
+class MysqlSchema
+{
+	private static final String SELECT_VERSION = "SELECT `version` FROM `HorsesSchema`";
+	private static final String UPDATE_VERSION = "UPDATE `HorsesSchema` SET `version`=?";
+	private static final String SELECT_INDEX = "SELECT 1 FROM INFORMATION_SCHEMA.STATISTICS WHERE table_schema=DATABASE() AND table_name=? AND index_name=? LIMIT 1";
+	
+	/**
+	 * Every migration in the order they must be run<br/>
+	 * 
+	 * Migrations must never be removed or reordered once released, only appended.
+	 */
+	private static final SqlMigration[] MIGRATIONS = {
+		new SqlMigration(1, "Create the Horses and Stables tables")
+		{
+			@Override
+			public void migrate(SqlConnection conn) throws SQLException
+			{
+				// Databases created before schema versioning may already have some of these
+				createTables(conn, "Horses", "Stables");
+				
+				checkColumn(conn, "Stables", "user", "VARCHAR(16) NOT NULL");
+				checkColumn(conn, "Stables", "lastactive", "VARCHAR(30) NOT NULL");
+				addUniqueIndex(conn, "Stables", "user");
+				
+				checkColumn(conn, "Horses", "stableid", "INT NOT NULL DEFAULT '0' AFTER `id`");
+				checkColumn(conn, "Horses", "stablegroup", "VARCHAR(30) NOT NULL DEFAULT '" + HorseDatabase.DEFAULT_GROUP + "' COLLATE utf8_general_ci AFTER `stableid`");
+				checkColumn(conn, "Horses", "name", "VARCHAR(30) NOT NULL DEFAULT '' COLLATE utf8_general_ci AFTER `stablegroup`");
+				checkColumn(conn, "Horses", "type", "VARCHAR(16) NOT NULL DEFAULT '' COLLATE utf8_general_ci AFTER `name`");
+				checkColumn(conn, "Horses", "lastDeath", "BIGINT NOT NULL DEFAULT '0' AFTER `type`");
+				checkColumn(conn, "Horses", "maxhealth", "DOUBLE NOT NULL DEFAULT '20' AFTER `lastDeath`");
+				checkColumn(conn, "Horses", "health", "DOUBLE NOT NULL DEFAULT '20' AFTER `maxhealth`");
+				checkColumn(conn, "Horses", "speed", "DOUBLE NOT NULL DEFAULT '0.225' AFTER `health`");
+				checkColumn(conn, "Horses", "jumpstrength", "DOUBLE NOT NULL DEFAULT '0.7' AFTER `speed`");
+				checkColumn(conn, "Horses", "chested", "TINYINT NOT NULL DEFAULT '0' AFTER `jumpstrength`");
+				checkColumn(conn, "Horses", "inventory", "VARCHAR(10000) NOT NULL DEFAULT 'i: []' COLLATE utf8_general_ci AFTER `chested`");
+			}
+		},
+		new SqlMigration(2, "Index horses by stable and group")
+		{
+			@Override
+			public void migrate(SqlConnection conn) throws SQLException
+			{
+				if (!hasIndex(conn, "Horses", "stable_group"))
+					executeUpdate(conn, "ALTER TABLE `Horses` ADD INDEX `stable_group` (`stableid`, `stablegroup`)");
+			}
+		},
+		new SqlMigration(3, "Key stables by player UUID")
+		{
+			@Override
+			public void migrate(SqlConnection conn) throws SQLException
+			{
+				// Existing stables are claimed by a UUID the next time their owner loads them
+				checkColumn(conn, "Stables", "uuid", "BINARY(16) NULL DEFAULT NULL AFTER `id`");
+				if (!hasIndex(conn, "Stables", "uuid"))
+					executeUpdate(conn, "ALTER TABLE `Stables` ADD UNIQUE INDEX `uuid` (`uuid`)");
+				
+				// Player names are no longer unique once players can rename themselves
+				if (hasIndex(conn, "Stables", "user"))
+					executeUpdate(conn, "ALTER TABLE `Stables` DROP INDEX `user`");
+				executeUpdate(conn, "ALTER TABLE `Stables` ADD INDEX `user` (`user`)");
+			}
+		},
+		new SqlMigration(4, "Store horse inventories in binary")
+		{
+			@Override
+			public void migrate(SqlConnection conn) throws SQLException
+			{
+				// Inventories are moved out of the old column as their horses are saved
+				checkColumn(conn, "Horses", "items", "MEDIUMBLOB NULL DEFAULT NULL AFTER `inventory`");
+			}
+		},
+	};
+	
+	private MysqlSchema()
+	{
+	}
+	
+	/**
+	 * Runs every migration which has not been applied to the database yet
+	 * @param plugin The plugin instance
+	 * @param conn The connection to migrate
+	 * @throws SQLException If a migration failed
+	 */
+	public static void migrate(Horses plugin, SqlConnection conn) throws SQLException
+	{
+		int version = getVersion(conn);
+		
+		for (SqlMigration migration : MIGRATIONS)
+		{
+			if (migration.version <= version)
+				continue;
+			
+			plugin.info("Migrating MySQL database to version %d: %s", migration.version, migration.description);
+			
+			migration.migrate(conn);
+			
+			PreparedStatement stmt = conn.prepare(UPDATE_VERSION);
+			stmt.setInt(1, migration.version);
+			stmt.executeUpdate();
+			
+			version = migration.version;
+		}
+	}
+	
+	/**
+	 * Fetches the current schema version, creating the version table if it does not exist
+	 */
+	private static int getVersion(SqlConnection conn) throws SQLException
+	{
+		try
+		{
+			ResultSet result = conn.prepare(SELECT_VERSION).executeQuery();
+			try
+			{
+				if (result.next())
+					return result.getInt(1);
+			}
+			finally
+			{
+				result.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			// The version table does not exist yet
+			executeUpdate(conn, "CREATE TABLE IF NOT EXISTS `HorsesSchema` (`version` INT NOT NULL) ENGINE=InnoDB");
+		}
+		
+		executeUpdate(conn, "INSERT INTO `HorsesSchema` (`version`) VALUES (0)");
+		return 0;
+	}
+	
+	private static void createTables(SqlConnection conn, String ...tables) throws SQLException
+	{
+		for (String table : tables)
+		{
+			executeUpdate(conn, "CREATE TABLE IF NOT EXISTS `" + table + "` ("
+					+ "`id` INT NOT NULL AUTO_INCREMENT,"
+					+ "PRIMARY KEY (`id`)) ENGINE=InnoDB");
+		}
+	}
+	
+	private static void checkColumn(SqlConnection conn, String table, String column, String settings) throws SQLException
+	{
+		try
+		{
+			executeUpdate(conn, String.format(Locale.US, "ALTER TABLE `%1$s` CHANGE `%2$s` `%2$s` %3$s", table, column, settings));
+		}
+		catch (SQLException e)
+		{
+			executeUpdate(conn, String.format(Locale.US, "ALTER TABLE `%1$s` ADD `%2$s` %3$s", table, column, settings));
+		}
+	}
+	
+	private static void addUniqueIndex(SqlConnection conn, String table, String column) throws SQLException
+	{
+		if (hasIndex(conn, table, column))
+			return;
+		
+		executeUpdate(conn, String.format(Locale.US, "ALTER TABLE `%s` ADD UNIQUE (`%s`)", table, column));
+	}
+	
+	private static boolean hasIndex(SqlConnection conn, String table, String index) throws SQLException
+	{
+		PreparedStatement stmt = conn.prepare(SELECT_INDEX);
+		stmt.setString(1, table);
+		stmt.setString(2, index);
+		
+		ResultSet result = stmt.executeQuery();
+		try
+		{
+			return result.next();
+		}
+		finally
+		{
+			result.close();
+		}
+	}
+	
+	/**
+	 * Runs a one-off schema statement which can not be parameterized
+	 */
+	private static void executeUpdate(SqlConnection conn, String sql) throws SQLException
+	{
+		Statement stmt = conn.getConnection().createStatement();
+		try
+		{
+			stmt.executeUpdate(sql);
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.forgenz.horses.Stable;
+
+/**
+ * Keeps a limited number of recently used stables of offline players in memory<br/>
+ * 
+ * The least recently used stable is dropped once the cache is full, and stables which
+ * have not been used for a while are dropped when the cache is next used. The cached
+ * stables are the same objects horses are saved from, so changes saved while a stable was
+ * cached are still in it when its player reconnects.
+ */
+public class OfflineStableCache
+{
+	private final int maxSize;
+	private final long expireAfter;
+	
+	private final LinkedHashMap<String, CachedStable> stables;
+	
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	/**
+	 * @param maxSize The number of stables to keep, 0 to disable the cache
+	 * @param expireAfter The number of seconds an unused stable is kept for
+	 */
+	public OfflineStableCache(final int maxSize, int expireAfter)
+	{
+		this.maxSize = Math.max(0, maxSize);
+		this.expireAfter = TimeUnit.SECONDS.toNanos(Math.max(0, expireAfter));
+		
+		// Access order keeps the least recently used stable first
+		stables = new LinkedHashMap<String, CachedStable>(16, 0.75F, true)
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStable> eldest)
+			{
+				if (size() <= OfflineStableCache.this.maxSize)
+					return false;
+				
+				++evictions;
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Removes a stable from the cache so it can be used by an online player
+	 * @param player The name of the player
+	 * @param playerId The UUID of the player, or null if it is not known
+	 * @param stableGroup The stable group
+	 * @return The stable or null if it is not cached
+	 */
+	public synchronized Stable take(String player, UUID playerId, String stableGroup)
+	{
+		CachedStable cached = lookup(player, playerId, stableGroup);
+		
+		if (cached == null)
+			return null;
+		
+		stables.remove(key(cached.stable.getOwner(), cached.stable.getOwnerId(), stableGroup));
+		return cached.stable;
+	}
+	
+	/**
+	 * Adds a stable to the cache, replacing any stable cached for the same player and group
+	 * @param stable The stable
+	 */
+	public synchronized void put(Stable stable)
+	{
+		if (maxSize == 0)
+			return;
+		
+		removeExpired();
+		
+		// The player may have been cached by name before their UUID was known
+		if (stable.getOwnerId() != null)
+			stables.remove(key(stable.getOwner(), null, stable.getGroup()));
+		
+		stables.put(key(stable.getOwner(), stable.getOwnerId(), stable.getGroup()), new CachedStable(stable, System.nanoTime() + expireAfter));
+	}
+	
+	/**
+	 * Removes every stable from the cache
+	 */
+	public synchronized void clear()
+	{
+		stables.clear();
+	}
+	
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+	
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+	
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+	
+	/**
+	 * @return The number of stables which are cached
+	 */
+	public synchronized int size()
+	{
+		return stables.size();
+	}
+	
+	private CachedStable lookup(String player, UUID playerId, String stableGroup)
+	{
+		if (maxSize == 0)
+			return null;
+		
+		removeExpired();
+		
+		CachedStable cached = null;
+		if (playerId != null)
+			cached = stables.get(key(player, playerId, stableGroup));
+		if (cached == null)
+			cached = stables.get(key(player, null, stableGroup));
+		
+		// The name may now belong to a different player
+		if (cached != null && playerId != null && cached.stable.getOwnerId() != null && !playerId.equals(cached.stable.getOwnerId()))
+			cached = null;
+		
+		if (cached == null)
+			++misses;
+		else
+			++hits;
+		
+		return cached;
+	}
+	
+	/**
+	 * Drops stables which have not been used recently<br/>
+	 * 
+	 * The least recently used stables come first so this stops at the first one which has not expired
+	 */
+	private void removeExpired()
+	{
+		long now = System.nanoTime();
+		
+		for (Iterator<CachedStable> it = stables.values().iterator(); it.hasNext();)
+		{
+			if (it.next().expires - now > 0)
+				break;
+			
+			it.remove();
+			++evictions;
+		}
+	}
+	
+	private static String key(String player, UUID playerId, String stableGroup)
+	{
+		return stableGroup + ':' + (playerId != null ? playerId.toString() : player.toLowerCase());
+	}
+	
+	private static class CachedStable
+	{
+		public final Stable stable;
+		public long expires;
+		
+		public CachedStable(Stable stable, long expires)
+		{
+			this.stable = stable;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of which player data files exist in each stable group<br/>
+ * 
+ * The playerdata folder is listed once when the index is built, after which the index is
+ * updated as files are written and deleted. Looking up a file never touches the disk.<br/>
+ * 
+ * Files are either stored flat in their group's folder or sharded into two levels of
+ * folders named after a hash of the file name, such as <i>playerdata/ab/cd/&lt;uuid&gt;.yml</i>.
+ * The index remembers which layout each file is stored in so both can be used at once
+ * while files are moved between them.<br/>
+ * 
+ * A marker file in the playerdata folder records that sharded files may exist. Without it
+ * every folder is a stable group, so groups with short hexadecimal names are not mistaken
+ * for shards.
+ */
+class PlayerDataIndex
+{
+	private static final Pattern YML_EXTENSION = Pattern.compile("\\.yml$", Pattern.CASE_INSENSITIVE);
+	private static final Pattern SHARD = Pattern.compile("^[0-9a-f]{2}$");
+	/** Marks a playerdata folder which may contain sharded files */
+	private static final String SHARDED_MARKER = ".sharded";
+	
+	private final File folder;
+	private volatile boolean shardedLayout;
+	
+	/** Maps stable groups to the files in them and whether each file is sharded */
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> groups = new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+	
+	/**
+	 * @param folder The playerdata folder. Files in the folder belong to the default group
+	 * and each folder inside it holds the files for one stable group.
+	 */
+	public PlayerDataIndex(File folder)
+	{
+		this.folder = folder;
+		
+		rebuild();
+	}
+	
+	/**
+	 * Fetches the location of a player's data file
+	 * @param stableGroup The stable group
+	 * @param player The name of the file, without the extension
+	 * @param sharded True for the sharded layout, false for the flat layout
+	 */
+	public File getFile(String stableGroup, String player, boolean sharded)
+	{
+		File groupFolder = stableGroup.equals(HorseDatabase.DEFAULT_GROUP) ? folder : new File(folder, stableGroup);
+		
+		if (sharded)
+		{
+			String hash = String.format("%08x", player.hashCode());
+			groupFolder = new File(new File(groupFolder, hash.substring(0, 2)), hash.substring(2, 4));
+		}
+		
+		return new File(groupFolder, player + ".yml");
+	}
+	
+	/**
+	 * Lists the playerdata folder again, replacing the contents of the index
+	 */
+	public synchronized void rebuild()
+	{
+		groups.clear();
+		shardedLayout = new File(folder, SHARDED_MARKER).isFile();
+		
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		
+		for (File file : files)
+		{
+			if (!file.isDirectory())
+			{
+				addFile(HorseDatabase.DEFAULT_GROUP, file, false);
+			}
+			// Shards of the default group sit alongside the group folders
+			else if (shardedLayout && isShard(file))
+			{
+				addShard(HorseDatabase.DEFAULT_GROUP, file);
+			}
+			else
+			{
+				addGroup(file);
+			}
+		}
+	}
+	
+	/**
+	 * Checks if a folder in the root of the playerdata folder is a shard rather than a stable group<br/>
+	 * 
+	 * Shards are named with two hexadecimal characters and only contain other shards
+	 */
+	private static boolean isShard(File folder)
+	{
+		if (!SHARD.matcher(folder.getName()).matches())
+			return false;
+		
+		File[] files = folder.listFiles();
+		if (files == null)
+			return false;
+		
+		for (File file : files)
+		{
+			if (!file.isDirectory() || !SHARD.matcher(file.getName()).matches())
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return True if the playerdata folder is marked as possibly containing sharded files
+	 */
+	public boolean isShardedLayout()
+	{
+		return shardedLayout;
+	}
+	
+	/**
+	 * Marks or unmarks the playerdata folder as possibly containing sharded files<br/>
+	 * 
+	 * The folder must be marked before any sharded file is written, and should only be
+	 * unmarked once every file has been moved to the flat layout.
+	 * @throws IOException If the marker file could not be created or deleted
+	 */
+	public synchronized void setShardedLayout(boolean sharded) throws IOException
+	{
+		if (sharded == shardedLayout)
+			return;
+		
+		File marker = new File(folder, SHARDED_MARKER);
+		
+		if (sharded)
+		{
+			folder.mkdirs();
+			if (!marker.createNewFile() && !marker.isFile())
+				throw new IOException("Failed to create " + marker.getPath());
+		}
+		else if (!marker.delete() && marker.exists())
+		{
+			throw new IOException("Failed to delete " + marker.getPath());
+		}
+		
+		shardedLayout = sharded;
+	}
+	
+	private void addGroup(File groupFolder)
+	{
+		File[] files = groupFolder.listFiles();
+		if (files == null)
+			return;
+		
+		for (File file : files)
+		{
+			if (!file.isDirectory())
+				addFile(groupFolder.getName(), file, false);
+			else if (shardedLayout && SHARD.matcher(file.getName()).matches())
+				addShard(groupFolder.getName(), file);
+		}
+	}
+	
+	private void addShard(String stableGroup, File shard)
+	{
+		File[] shards = shard.listFiles();
+		if (shards == null)
+			return;
+		
+		for (File innerShard : shards)
+		{
+			File[] files = innerShard.listFiles();
+			if (files == null)
+				continue;
+			
+			for (File file : files)
+			{
+				addFile(stableGroup, file, true);
+			}
+		}
+	}
+	
+	private void addFile(String stableGroup, File file, boolean sharded)
+	{
+		// Skip temporary files left behind by an interrupted write
+		if (!file.isFile() || !YML_EXTENSION.matcher(file.getName()).find())
+			return;
+		
+		put(stableGroup, YML_EXTENSION.matcher(file.getName()).replaceAll(""), sharded);
+	}
+	
+	/**
+	 * @param stableGroup The stable group
+	 * @param player The name of the player's file, without the extension
+	 * @return True if the player has a data file in the group
+	 */
+	public boolean contains(String stableGroup, String player)
+	{
+		return getLayout(stableGroup, player) != null;
+	}
+	
+	/**
+	 * @param stableGroup The stable group
+	 * @param player The name of the player's file, without the extension
+	 * @return True if the file is sharded, false if it is flat or null if there is no file
+	 */
+	public Boolean getLayout(String stableGroup, String player)
+	{
+		Map<String, Boolean> players = groups.get(stableGroup);
+		
+		return players != null ? players.get(player) : null;
+	}
+	
+	/**
+	 * Records that the player has a data file in the group
+	 * @param sharded True if the file is stored in the sharded layout
+	 */
+	public void put(String stableGroup, String player, boolean sharded)
+	{
+		ConcurrentHashMap<String, Boolean> players = groups.get(stableGroup);
+		
+		if (players == null)
+		{
+			players = new ConcurrentHashMap<String, Boolean>();
+			
+			ConcurrentHashMap<String, Boolean> existing = groups.putIfAbsent(stableGroup, players);
+			if (existing != null)
+				players = existing;
+		}
+		
+		players.put(player, sharded);
+	}
+	
+	/**
+	 * Records that the players data file in the group has been removed
+	 * @return True if the player had a data file in the group
+	 */
+	public boolean remove(String stableGroup, String player)
+	{
+		Map<String, Boolean> players = groups.get(stableGroup);
+		
+		return players != null && players.remove(player) != null;
+	}
+	
+	/**
+	 * @return Every stable group with a folder
+	 */
+	public Collection<String> getGroups()
+	{
+		return new ArrayList<String>(groups.keySet());
+	}
+	
+	/**
+	 * @return The names of every data file in the group, without their extension
+	 */
+	public Collection<String> getPlayers(String stableGroup)
+	{
+		Map<String, Boolean> players = groups.get(stableGroup);
+		
+		return players != null ? new ArrayList<String>(players.keySet()) : Collections.<String>emptyList();
+	}
+	
+	/**
+	 * Lists the files which are not stored in the given layout
+	 * @param sharded True to find flat files, false to find sharded files
+	 * @return Pairs of stable groups and file names
+	 */
+	public List<String[]> getMisplaced(boolean sharded)
+	{
+		ArrayList<String[]> misplaced = new ArrayList<String[]>();
+		
+		for (Map.Entry<String, ConcurrentHashMap<String, Boolean>> group : groups.entrySet())
+		{
+			for (Map.Entry<String, Boolean> player : group.getValue().entrySet())
+			{
+				if (player.getValue() != sharded)
+					misplaced.add(new String[] { group.getKey(), player.getKey() });
+			}
+		}
+		
+		return misplaced;
+	}
+}
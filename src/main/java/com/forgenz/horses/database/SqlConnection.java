@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+/**
+ * A pooled database connection which caches the prepared statements created on it<br/>
+ * 
+ * Each statement is prepared once per connection and reused for the life of the connection.
+ */
+class SqlConnection
+{
+	private final Connection conn;
+	private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+	
+	long lastUsed = System.currentTimeMillis();
+	
+	public SqlConnection(Connection conn)
+	{
+		this.conn = conn;
+	}
+	
+	public Connection getConnection()
+	{
+		return conn;
+	}
+	
+	/**
+	 * Fetches the cached prepared statement for the given query, preparing it if needed
+	 * @param sql The parameterized query
+	 * @return The prepared statement with its parameters cleared
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException
+	{
+		return prepare(sql, false);
+	}
+	
+	/**
+	 * Fetches the cached prepared statement for the given query, preparing it if needed
+	 * @param sql The parameterized query
+	 * @param generatedKeys True if the statement should return generated keys
+	 * @return The prepared statement with its parameters cleared
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql, boolean generatedKeys) throws SQLException
+	{
+		PreparedStatement stmt = statements.get(sql);
+		
+		if (stmt == null)
+		{
+			stmt = generatedKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sql);
+			statements.put(sql, stmt);
+		}
+		else
+		{
+			stmt.clearParameters();
+		}
+		
+		return stmt;
+	}
+	
+	/**
+	 * Closes every cached statement and then the connection itself
+	 */
+	public void close()
+	{
+		for (PreparedStatement stmt : statements.values())
+		{
+			try
+			{
+				stmt.close();
+			}
+			catch (SQLException e)
+			{
+			}
+		}
+		statements.clear();
+		
+		try
+		{
+			conn.close();
+		}
+		catch (SQLException e)
+		{
+		}
+	}
+}
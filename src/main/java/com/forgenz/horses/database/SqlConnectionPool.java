@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.forgenz.horses.Horses;
+
+/**
+ * A small bounded pool of JDBC connections for a SQL database<br/>
+ * 
+ * Connections are validated with {@link Connection#isValid(int)} before being handed out
+ * and idle connections are closed once they have not been used for the idle timeout.
+ */
+class SqlConnectionPool
+{
+	private final Horses plugin;
+	private final String driver, url, user, password;
+	private final String[] initStatements;
+	
+	private final int validationTimeout;
+	private final long idleTimeout, acquireTimeout;
+	
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<SqlConnection> idle = new LinkedBlockingDeque<SqlConnection>();
+	
+	private volatile boolean closed = false;
+	private int spam;
+	
+	/**
+	 * @param plugin The plugin instance
+	 * @param driver The class name of the JDBC driver
+	 * @param url The JDBC url to connect to
+	 * @param user The database user
+	 * @param password The database users password
+	 * @param size The maximum number of connections which can be open at once
+	 * @param validationTimeout Seconds to wait when validating a connection, or 0 to skip validation
+	 * @param idleTimeout Seconds a connection can remain unused before it is closed
+	 * @param acquireTimeout Seconds to wait for a free connection
+	 * @param initStatements Statements run on each new connection
+	 */
+	public SqlConnectionPool(Horses plugin, String driver, String url, String user, String password, int size, int validationTimeout, int idleTimeout, int acquireTimeout, String ...initStatements)
+	{
+		this.plugin = plugin;
+		this.driver = driver;
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.initStatements = initStatements;
+		
+		this.validationTimeout = Math.max(0, validationTimeout);
+		this.idleTimeout = TimeUnit.SECONDS.toMillis(Math.max(1, idleTimeout));
+		this.acquireTimeout = TimeUnit.SECONDS.toMillis(Math.max(0, acquireTimeout));
+		
+		permits = new Semaphore(Math.max(1, size), true);
+	}
+	
+	/**
+	 * Fetches a valid connection from the pool, opening a new one if none are idle<br/>
+	 * 
+	 * Every connection returned must be handed back using {@link #release(SqlConnection)}
+	 * 
+	 * @return A valid connection or null if one could not be acquired
+	 */
+	public SqlConnection acquire()
+	{
+		if (closed)
+			return null;
+		
+		try
+		{
+			if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS))
+			{
+				plugin.severe("Timed out waiting for a free database connection");
+				return null;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		
+		evictIdle();
+		
+		// Reuse the most recently used connection if it is still alive
+		SqlConnection pooled;
+		while ((pooled = idle.pollFirst()) != null)
+		{
+			if (validationTimeout == 0 || isValid(pooled.getConnection()))
+				return pooled;
+			
+			pooled.close();
+		}
+		
+		Connection conn = open();
+		
+		if (conn == null)
+		{
+			permits.release();
+			return null;
+		}
+		
+		return new SqlConnection(conn);
+	}
+	
+	/**
+	 * Returns a connection to the pool
+	 * @param conn The connection fetched using {@link #acquire()}
+	 */
+	public void release(SqlConnection conn)
+	{
+		if (conn == null)
+			return;
+		
+		try
+		{
+			// Don't hand a connection in an odd state to the next user
+			if (!conn.getConnection().getAutoCommit())
+			{
+				conn.getConnection().rollback();
+				conn.getConnection().setAutoCommit(true);
+			}
+		}
+		catch (SQLException e)
+		{
+			conn.close();
+			conn = null;
+		}
+		
+		if (conn != null)
+		{
+			conn.lastUsed = System.currentTimeMillis();
+			
+			if (closed)
+				conn.close();
+			else
+				idle.offerFirst(conn);
+		}
+		
+		permits.release();
+	}
+	
+	/**
+	 * Closes every idle connection and stops new connections being handed out
+	 */
+	public void close()
+	{
+		closed = true;
+		
+		SqlConnection pooled;
+		while ((pooled = idle.pollFirst()) != null)
+		{
+			pooled.close();
+		}
+	}
+	
+	/**
+	 * Closes connections which have been sitting idle for too long
+	 */
+	private void evictIdle()
+	{
+		long now = System.currentTimeMillis();
+		
+		// The least recently used connections are at the end of the deque
+		SqlConnection pooled;
+		while ((pooled = idle.peekLast()) != null && now - pooled.lastUsed > idleTimeout)
+		{
+			if (idle.removeLastOccurrence(pooled))
+				pooled.close();
+		}
+	}
+	
+	private Connection open()
+	{
+		try
+		{
+			Class.forName(driver);
+			
+			Connection conn = DriverManager.getConnection(url, user, password);
+			
+			try
+			{
+				initialise(conn);
+			}
+			catch (SQLException e)
+			{
+				conn.close();
+				throw e;
+			}
+			
+			spam = 0;
+			return conn;
+		}
+		catch (SQLException e)
+		{
+			if (spam++ < 20)
+				plugin.severe("Failed to connect to the database '%s'", e, url);
+			else
+				plugin.severe("Failed to connect to the database '%s'. See above for error", url);
+		}
+		catch (ClassNotFoundException e)
+		{
+			if (spam++ < 20)
+				plugin.severe("Couldn't find the database driver %s", e, driver);
+			else
+				plugin.severe("Couldn't find the database driver %s. See above for error", driver);
+		}
+		
+		return null;
+	}
+	
+	private void initialise(Connection conn) throws SQLException
+	{
+		if (initStatements.length == 0)
+			return;
+		
+		Statement stmt = conn.createStatement();
+		try
+		{
+			for (String sql : initStatements)
+			{
+				stmt.execute(sql);
+			}
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+	
+	private boolean isValid(Connection conn)
+	{
+		try
+		{
+			return conn.isValid(validationTimeout);
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+}
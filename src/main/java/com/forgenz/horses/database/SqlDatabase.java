@@ -0,0 +1,1146 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+
+import org.bukkit.inventory.ItemStack;
+
+import com.forgenz.horses.HorseType;
+import com.forgenz.horses.Horses;
+import com.forgenz.horses.PlayerHorse;
+import com.forgenz.horses.Stable;
+
+/**
+ * Stores horses and stables in a relational database accessed over JDBC<br/>
+ * 
+ * Subclasses open the connection pool and create the tables for their database.
+ */
+public abstract class SqlDatabase extends HorseDatabase
+{
+	private static final String JOINED_HORSE_COLUMNS = "h.`id`, h.`stablegroup`, h.`name`, h.`type`, h.`lastdeath`, h.`maxhealth`, h.`health`, h.`speed`, h.`jumpstrength`, h.`chested`, h.`inventory`, h.`items`";
+	
+	private static final String SELECT_EVERYTHING = "SELECT s.`id` AS `stable_id`, s.`user`, s.`uuid`, s.`lastactive`, " + JOINED_HORSE_COLUMNS
+			+ " FROM `Stables` s JOIN `Horses` h ON h.`stableid`=s.`id` ORDER BY s.`id`";
+	
+	// Stables are found by UUID, falling back to stables which have not been claimed by a UUID yet
+	private static final String STABLE_BY_UUID = "SELECT `id`, `user`, `uuid`, `lastactive` FROM `Stables` WHERE `uuid`=? OR (`uuid` IS NULL AND `user`=?) ORDER BY `uuid` IS NULL LIMIT 1";
+	private static final String STABLE_BY_NAME = "SELECT `id`, `user`, `uuid`, `lastactive` FROM `Stables` WHERE `user`=? ORDER BY `uuid` IS NULL LIMIT 1";
+	
+	private static final String SELECT_STABLE = selectStable(STABLE_BY_UUID, true);
+	private static final String SELECT_STABLE_ALL_GROUPS = selectStable(STABLE_BY_UUID, false);
+	private static final String SELECT_STABLE_BY_NAME = selectStable(STABLE_BY_NAME, true);
+	private static final String SELECT_STABLE_ALL_GROUPS_BY_NAME = selectStable(STABLE_BY_NAME, false);
+	
+	private static final String CLAIM_STABLE = "UPDATE `Stables` SET `uuid`=?, `user`=? WHERE `id`=?";
+	private static final String INSERT_STABLE = "INSERT INTO `Stables` (`uuid`, `user`, `lastactive`) VALUES (?, ?, ?)";
+	private static final String UPDATE_STABLE = "UPDATE `Stables` SET `lastactive`=? WHERE `id`=?";
+	private static final String DELETE_STABLE = "DELETE FROM `Stables` WHERE `id`=?";
+	
+	private static final String INSERT_HORSE = "INSERT INTO `Horses` (`stableid`, `stablegroup`, `name`, `type`, `lastdeath`, `maxhealth`, `health`, `speed`, `jumpstrength`, `chested`, `items`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String UPDATE_HORSE = "UPDATE `Horses` SET `name`=?, `type`=?, `lastdeath`=?, `maxhealth`=?, `health`=?, `speed`=?, `jumpstrength`=?, `chested`=?, `inventory`='', `items`=? WHERE `id`=?";
+	private static final String DELETE_HORSE = "DELETE FROM `Horses` WHERE `id`=?";
+	
+	private SqlConnectionPool pool;
+	private int batchSize;
+	
+	/**
+	 * Creates a query which selects a single stable along with its horses
+	 * @param stableQuery The query selecting the stable row
+	 * @param singleGroup True if the horses should be filtered by stable group
+	 */
+	private static String selectStable(String stableQuery, boolean singleGroup)
+	{
+		return "SELECT s.`id` AS `stable_id`, s.`user`, s.`uuid`, s.`lastactive`, " + JOINED_HORSE_COLUMNS
+				+ " FROM (" + stableQuery + ") s LEFT JOIN `Horses` h ON h.`stableid`=s.`id`" + (singleGroup ? " AND h.`stablegroup`=?" : "");
+	}
+	
+	protected SqlDatabase(Horses plugin, HorseDatabaseStorageType dbType)
+	{
+		super(plugin, dbType);
+	}
+	
+	/**
+	 * Starts using the connection pool, bringing the database's tables up to date<br/>
+	 * 
+	 * The pool is closed if the database could not be opened
+	 * @param pool The pool of connections to the database
+	 * @param batchSize The number of rows to write in a single batch
+	 * @throws DatabaseConnectException If a connection could not be made
+	 * @throws SQLException If the tables could not be created
+	 */
+	protected void open(SqlConnectionPool pool, int batchSize) throws DatabaseConnectException, SQLException
+	{
+		this.pool = pool;
+		this.batchSize = Math.max(1, batchSize);
+		
+		// Check if we can connect to the database
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+		{
+			pool.close();
+			throw new DatabaseConnectException("Failed to connect to the " + getType() + " database");
+		}
+		
+		try
+		{
+			migrate(conn);
+		}
+		catch (SQLException e)
+		{
+			getPlugin().severe("Failed to create the %s tables", getType());
+			pool.release(conn);
+			pool.close();
+			throw e;
+		}
+		
+		pool.release(conn);
+	}
+	
+	/**
+	 * Creates or updates the tables used to store horses
+	 * @param conn The connection to use
+	 * @throws SQLException If the tables could not be created
+	 */
+	protected abstract void migrate(SqlConnection conn) throws SQLException;
+	
+	/**
+	 * Prepares a statement whose results are read from start to finish once<br/>
+	 * 
+	 * Databases which buffer results by default should override this to stream them instead.
+	 * The statement is not cached and is closed by the caller.
+	 */
+	protected PreparedStatement prepareStreaming(SqlConnection conn, String sql) throws SQLException
+	{
+		return conn.getConnection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+	
+	/**
+	 * @return True if the JDBC driver returns a generated key for every row of a batch
+	 */
+	protected boolean isBatchGeneratedKeysSupported()
+	{
+		return true;
+	}
+	
+	@Override
+	public void close()
+	{
+		super.close();
+		pool.close();
+	}
+	
+	@Override
+	protected void loadEverything(StableVisitor visitor)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+		{
+			getPlugin().severe("Failed to connect to database to copy contents");
+			return;
+		}
+		
+		try
+		{
+			// Stream the rows rather than buffering the whole table in the driver
+			PreparedStatement stmt = prepareStreaming(conn, SELECT_EVERYTHING);
+			try
+			{
+				ResultSet result = stmt.executeQuery();
+				try
+				{
+					readEverything(result, visitor);
+				}
+				finally
+				{
+					result.close();
+				}
+			}
+			finally
+			{
+				stmt.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			getPlugin().severe("Failed to fetch horse data from the %s database", e, getType());
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Reads the result of {@link #SELECT_EVERYTHING}, visiting each player's stables once all of their horses have been read
+	 */
+	private void readEverything(ResultSet result, StableVisitor visitor) throws SQLException
+	{
+		int id = -1;
+		String lastActive = null;
+		LinkedHashMap<String, Stable> stables = new LinkedHashMap<String, Stable>();
+		
+		while (result.next())
+		{
+			int stableId = result.getInt("stable_id");
+			
+			// Rows are ordered by stable, so the previous player has been read completely
+			if (stableId != id)
+			{
+				visitStables(stables, lastActive, visitor);
+				
+				id = stableId;
+				lastActive = result.getString("lastactive");
+			}
+			
+			String stableGroup = result.getString("stablegroup");
+			Stable stable = stables.get(stableGroup);
+			
+			if (stable == null)
+			{
+				stable = new Stable(getPlugin(), stableGroup, result.getString("user"), toUuid(result.getBytes("uuid")), id);
+				stables.put(stableGroup, stable);
+			}
+			
+			try
+			{
+				stable.addHorse(readHorse(stable, result));
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to load one of the player %s's Horses", e, stable.getOwner());
+			}
+		}
+		
+		visitStables(stables, lastActive, visitor);
+	}
+	
+	private void visitStables(Map<String, Stable> stables, String lastActive, StableVisitor visitor)
+	{
+		for (Stable stable : stables.values())
+		{
+			if (lastActive != null)
+				stable.setLastActiveHorse(stable.findHorse(lastActive, true));
+			
+			visitor.visit(stable);
+		}
+		
+		stables.clear();
+	}
+	
+	@Override
+	protected void importStables(List<Stable> stables)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+		{
+			getPlugin().severe("Failed to connect to database to import stables");
+			return;
+		}
+		
+		try
+		{
+			// Each player has a single stable row which is shared between their stable groups
+			LinkedHashMap<String, List<Stable>> owners = new LinkedHashMap<String, List<Stable>>();
+			
+			for (Stable stable : stables)
+			{
+				List<Stable> ownersStables = owners.get(stable.getOwner());
+				
+				if (ownersStables == null)
+				{
+					ownersStables = new ArrayList<Stable>();
+					owners.put(stable.getOwner(), ownersStables);
+				}
+				
+				ownersStables.add(stable);
+			}
+			
+			// Find the stable row for each player with horses, inserting one if they don't have one yet
+			ArrayList<Stable> ownerStables = new ArrayList<Stable>();
+			ArrayList<Stable> newStables = new ArrayList<Stable>();
+			for (List<Stable> ownersStables : owners.values())
+			{
+				Stable ownerStable = null;
+				
+				for (Stable stable : ownersStables)
+				{
+					// The player was imported in an earlier batch
+					if (stable.getId() != -1)
+					{
+						ownerStable = stable;
+						break;
+					}
+					
+					if (ownerStable == null && stable.getHorseCount() > 0)
+						ownerStable = stable;
+				}
+				
+				if (ownerStable == null)
+					continue;
+				
+				if (ownerStable.getId() == -1)
+					newStables.add(ownerStable);
+				ownerStables.add(ownerStable);
+			}
+			
+			saveStables(conn, newStables);
+			
+			// Share the stable row with the players other groups and insert every horse
+			ArrayList<PlayerHorse> horses = new ArrayList<PlayerHorse>();
+			for (Stable stable : ownerStables)
+			{
+				for (Stable groupStable : owners.get(stable.getOwner()))
+				{
+					groupStable.setId(stable.getId());
+					
+					for (PlayerHorse horse : groupStable)
+					{
+						horses.add(horse);
+					}
+				}
+			}
+			
+			saveHorses(conn, horses);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+
+	@Override
+	protected Stable loadStable(String player, UUID playerId, String stableGroup)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return null;
+		
+		try
+		{
+			// Fetch the stable and its horses in a single query
+			PreparedStatement stmt = prepareSelectStable(conn, player, playerId, true);
+			stmt.setString(playerId != null ? 3 : 2, stableGroup);
+			
+			Map<String, Stable> stables = readStables(conn, stmt.executeQuery(), player, playerId, Collections.singleton(stableGroup));
+			
+			return stables.get(stableGroup);
+		}
+		catch (SQLException e)
+		{
+			getPlugin().severe("Failed to load players Stable: '%s'", e, player);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+		
+		return null;
+	}
+	
+	@Override
+	protected Map<String, Stable> loadStables(String player, UUID playerId, Collection<String> stableGroups)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return Collections.emptyMap();
+		
+		try
+		{
+			return loadStables(conn, player, playerId, stableGroups);
+		}
+		catch (SQLException e)
+		{
+			getPlugin().severe("Failed to load players Stables: '%s'", e, player);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+		
+		return Collections.emptyMap();
+	}
+	
+	/**
+	 * Loads the players stables for each of the given groups using a single query
+	 */
+	private Map<String, Stable> loadStables(SqlConnection conn, String player, UUID playerId, Collection<String> stableGroups) throws SQLException
+	{
+		PreparedStatement stmt = prepareSelectStable(conn, player, playerId, false);
+		
+		return readStables(conn, stmt.executeQuery(), player, playerId, stableGroups);
+	}
+	
+	/**
+	 * Prepares a query selecting a stable and its horses, looking the stable up by UUID if it is known
+	 * @param singleGroup True if the query filters horses by stable group, which is left for the caller to set
+	 */
+	private PreparedStatement prepareSelectStable(SqlConnection conn, String player, UUID playerId, boolean singleGroup) throws SQLException
+	{
+		PreparedStatement stmt;
+		
+		if (playerId != null)
+		{
+			stmt = conn.prepare(singleGroup ? SELECT_STABLE : SELECT_STABLE_ALL_GROUPS);
+			stmt.setBytes(1, toBytes(playerId));
+			stmt.setString(2, player);
+		}
+		else
+		{
+			stmt = conn.prepare(singleGroup ? SELECT_STABLE_BY_NAME : SELECT_STABLE_ALL_GROUPS_BY_NAME);
+			stmt.setString(1, player);
+		}
+		
+		return stmt;
+	}
+	
+	/**
+	 * Creates stables from the result of a query selecting the stable along with {@link #JOINED_HORSE_COLUMNS}<br/>
+	 * 
+	 * Every group given has a stable created for it, even if the player has no horses in the group.
+	 * Horses in groups which were not requested are ignored.<br/>
+	 * 
+	 * If the stable was found by name or the player has been renamed the stable is claimed by the players UUID.
+	 * 
+	 * @param result The result set which will be closed once read
+	 * @return A map of stable groups to the stables loaded
+	 */
+	private Map<String, Stable> readStables(SqlConnection conn, ResultSet result, String player, UUID playerId, Collection<String> stableGroups) throws SQLException
+	{
+		int id = -1;
+		String lastActive = null;
+		boolean claim = false;
+		
+		LinkedHashMap<String, Stable> stables = new LinkedHashMap<String, Stable>();
+		
+		try
+		{
+			boolean first = true;
+			while (result.next())
+			{
+				// Every row carries the stable's data
+				if (first)
+				{
+					id = result.getInt("stable_id");
+					lastActive = result.getString("lastactive");
+					
+					claim = playerId != null && (result.getBytes("uuid") == null || !player.equals(result.getString("user")));
+					
+					for (String stableGroup : stableGroups)
+					{
+						stables.put(stableGroup, new Stable(getPlugin(), stableGroup, player, playerId, id));
+					}
+					first = false;
+				}
+				
+				// The stable has no horses
+				result.getInt("id");
+				if (result.wasNull())
+					continue;
+				
+				Stable stable = stables.get(result.getString("stablegroup"));
+				if (stable == null)
+					continue;
+				
+				try
+				{
+					stable.addHorse(readHorse(stable, result));
+				}
+				catch (SQLException e)
+				{
+					getPlugin().severe("Failed to load one of the player %s's Horses", e, player);
+				}
+			}
+		}
+		finally
+		{
+			result.close();
+		}
+		
+		// The player has no stable in the database yet
+		if (stables.isEmpty())
+		{
+			for (String stableGroup : stableGroups)
+			{
+				stables.put(stableGroup, new Stable(getPlugin(), stableGroup, player, playerId, id));
+			}
+		}
+		
+		if (claim)
+		{
+			PreparedStatement stmt = conn.prepare(CLAIM_STABLE);
+			stmt.setBytes(1, toBytes(playerId));
+			stmt.setString(2, player);
+			stmt.setInt(3, id);
+			stmt.executeUpdate();
+		}
+		
+		// Try to find the last active horse
+		if (lastActive != null)
+		{
+			for (Stable stable : stables.values())
+			{
+				stable.setLastActiveHorse(stable.findHorse(lastActive, true));
+			}
+		}
+		
+		return stables;
+	}
+	
+	/**
+	 * Creates a horse from the current row of a result set selecting {@link #JOINED_HORSE_COLUMNS}
+	 */
+	private PlayerHorse readHorse(Stable stable, ResultSet result) throws SQLException
+	{
+		// Fetch data for the horse
+		int horseId = result.getInt("id");
+		
+		String name = result.getString("name");
+		
+		HorseType type = HorseType.exactValueOf(result.getString("type"));
+		
+		long lastDeath = result.getLong("lastdeath");
+		double maxHealth = result.getDouble("maxhealth");
+		double health = result.getDouble("health");
+		double speed = result.getDouble("speed");
+		double jumpStrength = result.getDouble("jumpstrength");
+		boolean hasChest = type == HorseType.Mule || type == HorseType.Donkey ? result.getBoolean("chested") : false;
+		
+		byte[] inventory = result.getBytes("items");
+		
+		// Create the horse
+		PlayerHorse horseData = new PlayerHorse(getPlugin(), stable, name, type, maxHealth, health, speed, jumpStrength, null, horseId);
+		// Set additional data
+		horseData.setLastDeath(lastDeath);
+		
+		if (inventory != null)
+		{
+			setInventory(horseData, inventory);
+		}
+		else
+		{
+			// Inventories saved before they were stored in binary are still YAML strings
+			ItemStack[] items = readInventoryString(stable, result.getString("inventory"));
+			if (items != null)
+				horseData.setItems(items);
+		}
+		
+		horseData.setHasChest(hasChest);
+		
+		return horseData;
+	}
+
+	@Override
+	protected void saveStable(Stable stable)
+	{
+		// If the stable has not been inserted into the database and it has no horses we do nothing
+		if (stable.getHorseCount() == 0 && stable.getId() == -1)
+			return;
+		
+		// Try connect to the database
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return;
+		
+		try
+		{
+			saveStable(conn, stable);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+	
+	private void saveStable(SqlConnection conn, Stable stable)
+	{
+		// If the stable has not been inserted into the database and it has no horses we do nothing
+		if (stable.getHorseCount() == 0 && stable.getId() == -1)
+			return;
+		
+		// Check if we need to insert the stable into the database
+		if (stable.getId() == -1)
+		{
+			// NOTE: We must have at least one horse due to the check at the top
+			try
+			{
+				PreparedStatement stmt = conn.prepare(INSERT_STABLE, true);
+				bindNewStable(stmt, stable);
+				stmt.executeUpdate();
+				
+				// Save the stables ID
+				ResultSet result = stmt.getGeneratedKeys();
+				while (result.next())
+				{
+					stable.setId(result.getInt(1));
+				}
+				result.close();
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to insert the player %s's stable into the Database", stable.getOwner());
+			}
+		}
+		// If the player has any horses we update the data
+		else if (stable.getHorseCount() > 0)
+		{
+			try
+			{
+				PreparedStatement stmt = conn.prepare(UPDATE_STABLE);
+				stmt.setString(1, getLastActive(stable));
+				stmt.setInt(2, stable.getId());
+				stmt.executeUpdate();
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to update the player %s's stable in the database", e, stable.getOwner());
+			}
+		}
+		// Else we delete the stable
+		else
+		{
+			try
+			{
+				PreparedStatement stmt = conn.prepare(DELETE_STABLE);
+				stmt.setInt(1, stable.getId());
+				stmt.executeUpdate();
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to delete the player %s's stable in the database", e, stable.getOwner());
+			}
+		}
+		
+	}
+	
+	@Override
+	protected void saveStables(List<Stable> stables)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return;
+		
+		try
+		{
+			saveStables(conn, stables);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+	
+	private void saveStables(SqlConnection conn, List<Stable> stables)
+	{
+		ArrayList<Stable> inserts = new ArrayList<Stable>();
+		ArrayList<Stable> updates = new ArrayList<Stable>();
+		ArrayList<Stable> deletes = new ArrayList<Stable>();
+		
+		// Sort the stables in the same way saveStable does
+		for (Stable stable : stables)
+		{
+			if (stable.getId() == -1)
+			{
+				if (stable.getHorseCount() > 0)
+					inserts.add(stable);
+			}
+			else if (stable.getHorseCount() > 0)
+			{
+				updates.add(stable);
+			}
+			else
+			{
+				deletes.add(stable);
+			}
+		}
+		
+		insertStables.execute(conn, inserts);
+		updateStables.execute(conn, updates);
+		deleteStables.execute(conn, deletes);
+	}
+	
+	private static String getLastActive(Stable stable)
+	{
+		return stable.getLastActiveHorse() != null ? stable.getLastActiveHorse().getName() : "";
+	}
+	
+	private static void bindNewStable(PreparedStatement stmt, Stable stable) throws SQLException
+	{
+		if (stable.getOwnerId() != null)
+			stmt.setBytes(1, toBytes(stable.getOwnerId()));
+		else
+			stmt.setNull(1, Types.BINARY);
+		stmt.setString(2, stable.getOwner());
+		stmt.setString(3, getLastActive(stable));
+	}
+	
+	private final BatchWrite<Stable> insertStables = new BatchWrite<Stable>(INSERT_STABLE, true)
+	{
+		@Override
+		protected void bind(PreparedStatement stmt, Stable stable) throws SQLException
+		{
+			bindNewStable(stmt, stable);
+		}
+		
+		@Override
+		protected void setGeneratedKey(Stable stable, int key)
+		{
+			stable.setId(key);
+		}
+		
+		@Override
+		protected void writeSingle(SqlConnection conn, Stable stable)
+		{
+			saveStable(conn, stable);
+		}
+	};
+	
+	private final BatchWrite<Stable> updateStables = new BatchWrite<Stable>(UPDATE_STABLE, false)
+	{
+		@Override
+		protected void bind(PreparedStatement stmt, Stable stable) throws SQLException
+		{
+			stmt.setString(1, getLastActive(stable));
+			stmt.setInt(2, stable.getId());
+		}
+		
+		@Override
+		protected void writeSingle(SqlConnection conn, Stable stable)
+		{
+			saveStable(conn, stable);
+		}
+	};
+	
+	private final BatchWrite<Stable> deleteStables = new BatchWrite<Stable>(DELETE_STABLE, false)
+	{
+		@Override
+		protected void bind(PreparedStatement stmt, Stable stable) throws SQLException
+		{
+			stmt.setInt(1, stable.getId());
+		}
+		
+		@Override
+		protected void writeSingle(SqlConnection conn, Stable stable)
+		{
+			saveStable(conn, stable);
+		}
+	};
+
+	@Override
+	protected void saveHorseData(PlayerHorse horse)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return;
+		
+		try
+		{
+			saveHorse(conn, horse);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+	
+	private void saveHorse(SqlConnection conn, PlayerHorse horse)
+	{
+		// Check if the players stable has been saved first
+		if (horse.getStable().getId() == -1)
+		{
+			saveStable(conn, horse.getStable());
+		}
+		
+		// Check if we need to insert or update the horse's data
+		if (horse.getId() == -1)
+		{
+			try
+			{
+				// Insert the horses data into the database
+				PreparedStatement stmt = conn.prepare(INSERT_HORSE, true);
+				bindNewHorse(stmt, horse);
+				stmt.executeUpdate();
+				
+				// Set the horses ID
+				ResultSet result = stmt.getGeneratedKeys();
+				while (result.next())
+				{
+					horse.setId(result.getInt(1));
+				}
+				result.close();
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to insert the player %s's horse '%s' into the database", e, horse.getStable().getOwner(), horse.getName());
+			}
+		}
+		else
+		{
+			try
+			{
+				// Update existing values
+				PreparedStatement stmt = conn.prepare(UPDATE_HORSE);
+				bindHorseUpdate(stmt, horse);
+				stmt.executeUpdate();
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to update the player %s's horse '%s' in the database", e, horse.getStable().getOwner(), horse.getName());
+			}
+		}
+	}
+	
+	@Override
+	protected void saveHorses(List<PlayerHorse> horses)
+	{
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return;
+		
+		try
+		{
+			saveHorses(conn, horses);
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+	
+	private void saveHorses(SqlConnection conn, List<PlayerHorse> horses)
+	{
+		// Stables must be inserted before their new horses can reference them
+		// Snapshots of the same stable share a source, so each stable is only inserted once
+		// Stables which aren't snapshots are their own source
+		IdentityHashMap<Stable, Stable> newStables = new IdentityHashMap<Stable, Stable>();
+		
+		ArrayList<PlayerHorse> inserts = new ArrayList<PlayerHorse>();
+		ArrayList<PlayerHorse> updates = new ArrayList<PlayerHorse>();
+		
+		for (PlayerHorse horse : horses)
+		{
+			Stable stable = horse.getStable();
+			Stable source = stable.getSource() != null ? stable.getSource() : stable;
+			
+			if (stable.getId() == -1 && !newStables.containsKey(source))
+				newStables.put(source, stable);
+			
+			if (horse.getId() == -1)
+				inserts.add(horse);
+			else
+				updates.add(horse);
+		}
+		
+		saveStables(conn, new ArrayList<Stable>(newStables.values()));
+		
+		insertHorses.execute(conn, inserts);
+		updateHorses.execute(conn, updates);
+	}
+	
+	/**
+	 * Binds the values shared by {@link #INSERT_HORSE} and {@link #UPDATE_HORSE}
+	 * @param index The index of the first parameter
+	 */
+	private void bindHorseData(PreparedStatement stmt, int index, PlayerHorse horse) throws SQLException
+	{
+		stmt.setString(index++, COLOUR_CHAR_REPLACE.matcher(horse.getDisplayName()).replaceAll("&"));
+		stmt.setString(index++, horse.getType().toString());
+		stmt.setLong(index++, horse.getLastDeath());
+		stmt.setDouble(index++, horse.getMaxHealth());
+		stmt.setDouble(index++, horse.getHealth());
+		stmt.setDouble(index++, horse.getSpeed());
+		stmt.setDouble(index++, horse.getJumpStrength());
+		stmt.setBoolean(index++, horse.hasChest());
+		stmt.setBytes(index++, encodeInventory(horse));
+	}
+	
+	private void bindNewHorse(PreparedStatement stmt, PlayerHorse horse) throws SQLException
+	{
+		stmt.setInt(1, horse.getStable().getId());
+		stmt.setString(2, horse.getStable().getGroup());
+		bindHorseData(stmt, 3, horse);
+	}
+	
+	private void bindHorseUpdate(PreparedStatement stmt, PlayerHorse horse) throws SQLException
+	{
+		bindHorseData(stmt, 1, horse);
+		stmt.setInt(10, horse.getId());
+	}
+	
+	private final BatchWrite<PlayerHorse> insertHorses = new BatchWrite<PlayerHorse>(INSERT_HORSE, true)
+	{
+		@Override
+		protected void bind(PreparedStatement stmt, PlayerHorse horse) throws SQLException
+		{
+			bindNewHorse(stmt, horse);
+		}
+		
+		@Override
+		protected void setGeneratedKey(PlayerHorse horse, int key)
+		{
+			horse.setId(key);
+		}
+		
+		@Override
+		protected void writeSingle(SqlConnection conn, PlayerHorse horse)
+		{
+			saveHorse(conn, horse);
+		}
+	};
+	
+	private final BatchWrite<PlayerHorse> updateHorses = new BatchWrite<PlayerHorse>(UPDATE_HORSE, false)
+	{
+		@Override
+		protected void bind(PreparedStatement stmt, PlayerHorse horse) throws SQLException
+		{
+			bindHorseUpdate(stmt, horse);
+		}
+		
+		@Override
+		protected void writeSingle(SqlConnection conn, PlayerHorse horse)
+		{
+			saveHorse(conn, horse);
+		}
+	};
+
+	@Override
+	protected boolean deleteHorseData(PlayerHorse horse)
+	{
+		// If the horse has not been added to the database yet we return
+		if (horse.getId() == -1)
+			return true;
+		
+		SqlConnection conn = pool.acquire();
+		if (conn == null)
+			return false;
+		
+		try
+		{
+			PreparedStatement stmt = conn.prepare(DELETE_HORSE);
+			stmt.setInt(1, horse.getId());
+			stmt.executeUpdate();
+			return true;
+		}
+		catch (SQLException e)
+		{
+			getPlugin().severe("Failed to delete the player %s's horse '%s' from the database", horse.getStable().getOwner(), horse.getName());
+			return false;
+		}
+		finally
+		{
+			pool.release(conn);
+		}
+	}
+	
+	/**
+	 * Converts a UUID into the 16 bytes stored in the database
+	 */
+	static byte[] toBytes(UUID uuid)
+	{
+		return ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+	}
+	
+	/**
+	 * Converts 16 bytes from the database into a UUID
+	 * @return The UUID or null if the bytes were null
+	 */
+	static UUID toUuid(byte[] bytes)
+	{
+		if (bytes == null || bytes.length != 16)
+			return null;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+	
+	/**
+	 * A statement which is executed in batches of {@link SqlDatabase#batchSize} rows<br/>
+	 * 
+	 * Each batch is committed on its own. If a batch fails it is rolled back and
+	 * its rows are written one at a time so a single bad row does not lose the rest.
+	 */
+	private abstract class BatchWrite<T>
+	{
+		private final String sql;
+		private final boolean generatedKeys;
+		
+		public BatchWrite(String sql, boolean generatedKeys)
+		{
+			this.sql = sql;
+			this.generatedKeys = generatedKeys;
+		}
+		
+		protected abstract void bind(PreparedStatement stmt, T value) throws SQLException;
+		
+		protected void setGeneratedKey(T value, int key)
+		{
+		}
+		
+		protected abstract void writeSingle(SqlConnection conn, T value);
+		
+		public void execute(SqlConnection conn, List<T> values)
+		{
+			if (values.isEmpty())
+				return;
+			
+			Connection connection = conn.getConnection();
+			
+			try
+			{
+				connection.setAutoCommit(false);
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to start a batch write", e);
+				writeEach(conn, values);
+				return;
+			}
+			
+			try
+			{
+				for (int start = 0; start < values.size(); start += batchSize)
+				{
+					List<T> batch = values.subList(start, Math.min(values.size(), start + batchSize));
+					
+					try
+					{
+						executeBatch(conn, batch);
+					}
+					catch (SQLException e)
+					{
+						getPlugin().log(Level.WARNING, "Batch write failed, writing %d rows individually", e, batch.size());
+						
+						connection.rollback();
+						connection.setAutoCommit(true);
+						writeEach(conn, batch);
+						connection.setAutoCommit(false);
+					}
+				}
+			}
+			catch (SQLException e)
+			{
+				getPlugin().severe("Failed to recover from a failed batch write", e);
+			}
+			finally
+			{
+				try
+				{
+					connection.setAutoCommit(true);
+				}
+				catch (SQLException e)
+				{
+					getPlugin().severe("Failed to end a batch write", e);
+				}
+			}
+		}
+		
+		private void executeBatch(SqlConnection conn, List<T> batch) throws SQLException
+		{
+			PreparedStatement stmt = conn.prepare(sql, generatedKeys);
+			
+			int[] keys = null;
+			if (generatedKeys)
+			{
+				keys = new int[batch.size()];
+				Arrays.fill(keys, -1);
+			}
+			
+			if (generatedKeys && !isBatchGeneratedKeysSupported())
+			{
+				// Insert the rows one at a time to read each key, still committing them together
+				for (int i = 0; i < keys.length; ++i)
+				{
+					bind(stmt, batch.get(i));
+					stmt.executeUpdate();
+					
+					ResultSet result = stmt.getGeneratedKeys();
+					if (result.next())
+						keys[i] = result.getInt(1);
+					result.close();
+				}
+			}
+			else
+			{
+				stmt.clearBatch();
+				
+				for (T value : batch)
+				{
+					bind(stmt, value);
+					stmt.addBatch();
+				}
+				
+				stmt.executeBatch();
+				
+				if (generatedKeys)
+				{
+					ResultSet result = stmt.getGeneratedKeys();
+					for (int i = 0; i < keys.length && result.next(); ++i)
+					{
+						keys[i] = result.getInt(1);
+					}
+					result.close();
+				}
+			}
+			
+			conn.getConnection().commit();
+			
+			// Only hand out IDs once the rows definitely exist
+			if (keys != null)
+			{
+				for (int i = 0; i < keys.length; ++i)
+				{
+					setGeneratedKey(batch.get(i), keys[i]);
+				}
+			}
+		}
+		
+		private void writeEach(SqlConnection conn, List<T> values)
+		{
+			for (T value : values)
+			{
+				writeSingle(conn, value);
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.io.File;
+import java.sql.SQLException;
+
+import com.forgenz.horses.Horses;
+import com.forgenz.horses.config.AbstractConfig;
+
+/**
+ * Stores horses and stables in a single SQLite file inside the plugin's data folder
+ */
+public class SqliteDatabase extends SqlDatabase
+{
+	private static final int IDLE_TIMEOUT = 300;
+	
+	public SqliteDatabase(Horses plugin) throws DatabaseConnectException, SQLException
+	{
+		super(plugin, HorseDatabaseStorageType.SQLITE);
+		
+		SqliteSettings settings = new SqliteSettings(plugin);
+		File file = new File(plugin.getDataFolder(), settings.file);
+		
+		// The file is local so connections don't need validating before they are reused
+		// WAL lets loads read the file while the writer thread is saving
+		open(new SqlConnectionPool(plugin, "org.sqlite.JDBC", "jdbc:sqlite:" + file.getAbsolutePath(), null, null,
+				settings.poolSize, 0, IDLE_TIMEOUT, settings.busyTimeout,
+				"PRAGMA journal_mode=WAL", "PRAGMA synchronous=NORMAL", "PRAGMA busy_timeout=" + settings.busyTimeout * 1000), settings.batchSize);
+	}
+	
+	@Override
+	protected void migrate(SqlConnection conn) throws SQLException
+	{
+		SqliteSchema.migrate(getPlugin(), conn);
+	}
+	
+	@Override
+	protected boolean isBatchGeneratedKeysSupported()
+	{
+		// The driver only returns the key of the last row inserted
+		return false;
+	}
+	
+	private class SqliteSettings extends AbstractConfig
+	{
+		public final String file;
+		
+		public final int poolSize;
+		public final int busyTimeout;
+		public final int batchSize;
+		
+		protected SqliteSettings(Horses plugin)
+		{
+			super(plugin, null, null, "sqlite");
+			
+			this.loadConfiguration();
+			
+			this.addResourseToHeader("header_sqlite.txt");
+			
+			file = getAndSet("File", "horses.db", String.class);
+			
+			poolSize = getAndSet("PoolSize", 2, Number.class).intValue();
+			busyTimeout = Math.max(1, getAndSet("BusyTimeout", 10, Number.class).intValue());
+			batchSize = Math.max(1, getAndSet("BatchSize", 500, Number.class).intValue());
+			
+			this.saveConfiguration();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.forgenz.horses.Horses;
+
+/**
+ * Keeps the SQLite tables up to date using an ordered list of versioned migrations<br/>
+ * 
+ * The version of the schema is stored in SQLite's user_version pragma.
+ */
+class SqliteSchema
+{
+	/**
+	 * Every migration in the order they must be run<br/>
+	 * 
+	 * Migrations must never be removed or reordered once released, only appended.
+	 */
+	private static final SqlMigration[] MIGRATIONS = {
+		new SqlMigration(1, "Create the Horses and Stables tables")
+		{
+			@Override
+			public void migrate(SqlConnection conn) throws SQLException
+			{
+				executeUpdate(conn, "CREATE TABLE IF NOT EXISTS `Stables` ("
+						+ "`id` INTEGER PRIMARY KEY AUTOINCREMENT,"
+						+ "`uuid` BLOB NULL DEFAULT NULL,"
+						+ "`user` VARCHAR(16) NOT NULL COLLATE NOCASE,"
+						+ "`lastactive` VARCHAR(30) NOT NULL)");
+				executeUpdate(conn, "CREATE UNIQUE INDEX IF NOT EXISTS `stables_uuid` ON `Stables` (`uuid`)");
+				executeUpdate(conn, "CREATE INDEX IF NOT EXISTS `stables_user` ON `Stables` (`user`)");
+				
+				executeUpdate(conn, "CREATE TABLE IF NOT EXISTS `Horses` ("
+						+ "`id` INTEGER PRIMARY KEY AUTOINCREMENT,"
+						+ "`stableid` INTEGER NOT NULL DEFAULT 0,"
+						+ "`stablegroup` VARCHAR(30) NOT NULL DEFAULT '" + HorseDatabase.DEFAULT_GROUP + "' COLLATE NOCASE,"
+						+ "`name` VARCHAR(30) NOT NULL DEFAULT '' COLLATE NOCASE,"
+						+ "`type` VARCHAR(16) NOT NULL DEFAULT '',"
+						+ "`lastdeath` INTEGER NOT NULL DEFAULT 0,"
+						+ "`maxhealth` DOUBLE NOT NULL DEFAULT 20,"
+						+ "`health` DOUBLE NOT NULL DEFAULT 20,"
+						+ "`speed` DOUBLE NOT NULL DEFAULT 0.225,"
+						+ "`jumpstrength` DOUBLE NOT NULL DEFAULT 0.7,"
+						+ "`chested` TINYINT NOT NULL DEFAULT 0,"
+						+ "`inventory` TEXT NOT NULL DEFAULT 'i: []')");
+				executeUpdate(conn, "CREATE INDEX IF NOT EXISTS `horses_stable_group` ON `Horses` (`stableid`, `stablegroup`)");
+			}
+		},
+		new SqlMigration(2, "Store horse inventories in binary")
+		{
+			@Override
+			public void migrate(SqlConnection conn) throws SQLException
+			{
+				// Inventories are moved out of the old column as their horses are saved
+				executeUpdate(conn, "ALTER TABLE `Horses` ADD COLUMN `items` BLOB NULL DEFAULT NULL");
+			}
+		},
+	};
+	
+	private SqliteSchema()
+	{
+	}
+	
+	/**
+	 * Runs every migration which has not been applied to the database yet
+	 * @param plugin The plugin instance
+	 * @param conn The connection to migrate
+	 * @throws SQLException If a migration failed
+	 */
+	public static void migrate(Horses plugin, SqlConnection conn) throws SQLException
+	{
+		int version = getVersion(conn);
+		
+		for (SqlMigration migration : MIGRATIONS)
+		{
+			if (migration.version <= version)
+				continue;
+			
+			plugin.info("Migrating SQLite database to version %d: %s", migration.version, migration.description);
+			
+			migration.migrate(conn);
+			
+			// Pragmas can not be parameterized
+			executeUpdate(conn, "PRAGMA user_version=" + migration.version);
+			
+			version = migration.version;
+		}
+	}
+	
+	private static int getVersion(SqlConnection conn) throws SQLException
+	{
+		Statement stmt = conn.getConnection().createStatement();
+		try
+		{
+			ResultSet result = stmt.executeQuery("PRAGMA user_version");
+			try
+			{
+				return result.next() ? result.getInt(1) : 0;
+			}
+			finally
+			{
+				result.close();
+			}
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+	
+	/**
+	 * Runs a one-off schema statement which can not be parameterized
+	 */
+	private static void executeUpdate(SqlConnection conn, String sql) throws SQLException
+	{
+		Statement stmt = conn.getConnection().createStatement();
+		try
+		{
+			stmt.executeUpdate(sql);
+		}
+		finally
+		{
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.forgenz.horses.PlayerHorse;
+import com.forgenz.horses.Stable;
+
+/**
+ * Receives stables as they are read from the source database and writes
+ * them into the target database in batches<br/>
+ * 
+ * Only one batch of stables is held in memory at a time. The ID of each
+ * imported player's stable is remembered so that stable groups read in
+ * later batches share the player's stable.
+ */
+class StableImporter implements HorseDatabase.StableVisitor
+{
+	private static final int BATCH_SIZE = 500;
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+	
+	private final HorseDatabase target;
+	
+	private final ArrayList<Stable> batch = new ArrayList<Stable>(BATCH_SIZE);
+	private final HashMap<String, Integer> stableIds = new HashMap<String, Integer>();
+	
+	private final long started = System.nanoTime();
+	private long lastProgress = started;
+	
+	private int stableCount = 0;
+	private int horseCount = 0;
+	
+	public StableImporter(HorseDatabase target)
+	{
+		this.target = target;
+	}
+	
+	@Override
+	public void visit(Stable stable)
+	{
+		// Empty stables don't need importing
+		if (stable.getHorseCount() == 0)
+			return;
+		
+		batch.add(stable);
+		
+		if (batch.size() >= BATCH_SIZE)
+			flush();
+	}
+	
+	/**
+	 * Writes any stables which are still waiting and reports the final progress
+	 */
+	public void finish()
+	{
+		flush();
+		
+		reportProgress("Finished importing");
+	}
+	
+	private void flush()
+	{
+		if (batch.isEmpty())
+			return;
+		
+		// IDs from the source database mean nothing in the target database
+		for (Stable stable : batch)
+		{
+			Integer id = stableIds.get(stable.getOwner());
+			stable.setId(id != null ? id : -1);
+			
+			for (PlayerHorse horse : stable)
+			{
+				horse.setId(-1);
+			}
+		}
+		
+		target.importStables(batch);
+		target.sync();
+		
+		for (Stable stable : batch)
+		{
+			if (stable.getId() != -1)
+				stableIds.put(stable.getOwner(), stable.getId());
+			
+			++stableCount;
+			horseCount += stable.getHorseCount();
+		}
+		
+		batch.clear();
+		
+		long now = System.nanoTime();
+		if (now - lastProgress >= PROGRESS_INTERVAL)
+		{
+			lastProgress = now;
+			reportProgress("Imported");
+		}
+	}
+	
+	private void reportProgress(String prefix)
+	{
+		double seconds = Math.max(System.nanoTime() - started, 1L) / 1000000000D;
+		
+		target.getPlugin().info("%s %d stables and %d horses in %.1f seconds (%.0f horses/second)", prefix, stableCount, horseCount, seconds, horseCount / seconds);
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+
+import com.forgenz.horses.Horses;
+import com.forgenz.horses.Stable;
+
+/**
+ * The stables of online players, keyed by their owner's UUID and stable group<br/>
+ * 
+ * The registry can be used from any thread. A stable is registered as soon as its load
+ * starts, so every request for the stable while it is loading shares the same load.
+ * Loads can be run on the calling thread or handed to another thread. Each player can
+ * have a stable loaded for every stable group so moving between groups doesn't need
+ * the database.
+ */
+public class StableRegistry
+{
+	private final Horses plugin;
+	private final StableLoader loader;
+	
+	private final ConcurrentHashMap<StableKey, StableLoad> stables = new ConcurrentHashMap<StableKey, StableLoad>();
+	
+	public StableRegistry(Horses plugin, StableLoader loader)
+	{
+		this.plugin = plugin;
+		this.loader = loader;
+	}
+	
+	/**
+	 * Fetches the player's stable, waiting for it to finish loading if it is being loaded
+	 * @param playerId The UUID of the player
+	 * @param stableGroup The stable group
+	 * @return The stable or null if it is not loaded
+	 */
+	public Stable get(UUID playerId, String stableGroup)
+	{
+		StableLoad load = stables.get(new StableKey(playerId, stableGroup));
+		
+		return load != null ? await(load) : null;
+	}
+	
+	/**
+	 * Fetches the player's stable if it has finished loading, without waiting
+	 * @param playerId The UUID of the player
+	 * @param stableGroup The stable group
+	 * @return The stable or null if it is not loaded yet
+	 */
+	public Stable getIfLoaded(UUID playerId, String stableGroup)
+	{
+		StableLoad load = stables.get(new StableKey(playerId, stableGroup));
+		
+		return load != null ? load.getNow() : null;
+	}
+	
+	/**
+	 * Fetches the player's stable, loading it on this thread if it is not loaded<br/>
+	 * 
+	 * If the stable is already being loaded the existing load is waited for
+	 * @param player The name of the player
+	 * @param playerId The UUID of the player
+	 * @param stableGroup The stable group to load
+	 * @return The stable or null if it failed to load
+	 */
+	public Stable getOrLoad(String player, UUID playerId, String stableGroup)
+	{
+		RunnableFuture<Stable> load = load(player, playerId, stableGroup);
+		
+		// Does nothing if another thread has already started the load
+		load.run();
+		
+		return await((StableLoad) load);
+	}
+	
+	/**
+	 * Registers a load of the player's stable without running it<br/>
+	 * 
+	 * The load can be run on any thread, or handed to an executor. Running it more than once
+	 * does nothing. If the stable is already loaded or being loaded the existing load is returned.
+	 * @param player The name of the player
+	 * @param playerId The UUID of the player
+	 * @param stableGroup The stable group to load
+	 * @return The load
+	 */
+	public RunnableFuture<Stable> load(String player, UUID playerId, String stableGroup)
+	{
+		StableLoad load = new StableLoad(player, playerId, stableGroup);
+		StableLoad existing = stables.putIfAbsent(new StableKey(playerId, stableGroup), load);
+		
+		return existing != null ? existing : load;
+	}
+	
+	/**
+	 * Loads the player's stables for several stable groups on this thread with a single
+	 * call to the loader<br/>
+	 * 
+	 * Groups which are already loaded or being loaded are left alone. A load registered here
+	 * that another thread runs first fetches every group in the batch for this thread too.
+	 * @param player The name of the player
+	 * @param playerId The UUID of the player
+	 * @param stableGroups The stable groups to load
+	 */
+	public void loadAll(final String player, final UUID playerId, Collection<String> stableGroups)
+	{
+		final List<String> groups = new ArrayList<String>();
+		for (String stableGroup : stableGroups)
+		{
+			if (!groups.contains(stableGroup) && !contains(playerId, stableGroup))
+				groups.add(stableGroup);
+		}
+		
+		if (groups.isEmpty())
+			return;
+		
+		// The first load to run fetches the whole batch
+		final FutureTask<Map<String, Stable>> batch = new FutureTask<Map<String, Stable>>(new Callable<Map<String, Stable>>()
+		{
+			@Override
+			public Map<String, Stable> call()
+			{
+				return loader.load(player, playerId, groups);
+			}
+		});
+		
+		List<StableLoad> loads = new ArrayList<StableLoad>(groups.size());
+		for (final String stableGroup : groups)
+		{
+			StableLoad load = new StableLoad(player, playerId, stableGroup, new Callable<Stable>()
+			{
+				@Override
+				public Stable call() throws Exception
+				{
+					batch.run();
+					return batch.get().get(stableGroup);
+				}
+			});
+			
+			if (stables.putIfAbsent(new StableKey(playerId, stableGroup), load) == null)
+				loads.add(load);
+		}
+		
+		for (StableLoad load : loads)
+			load.run();
+	}
+	
+	/**
+	 * @param playerId The UUID of the player
+	 * @param stableGroup The stable group
+	 * @return True if the player's stable is loaded or being loaded
+	 */
+	public boolean contains(UUID playerId, String stableGroup)
+	{
+		return stables.containsKey(new StableKey(playerId, stableGroup));
+	}
+	
+	/**
+	 * @param playerId The UUID of the player
+	 * @return True if any of the player's stables are loaded or being loaded
+	 */
+	public boolean contains(UUID playerId)
+	{
+		for (StableKey key : stables.keySet())
+		{
+			if (key.playerId.equals(playerId))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes the stable from the registry if it is still registered
+	 * @param stable The stable to remove
+	 * @return True if the stable was removed
+	 */
+	public boolean remove(Stable stable)
+	{
+		if (stable.getOwnerId() != null)
+		{
+			StableKey key = new StableKey(stable.getOwnerId(), stable.getGroup());
+			StableLoad load = stables.get(key);
+			return load != null && load.getNow() == stable && stables.remove(key, load);
+		}
+		
+		for (Iterator<StableLoad> it = stables.values().iterator(); it.hasNext();)
+		{
+			if (it.next().getNow() == stable)
+			{
+				it.remove();
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Removes every one of the player's stables, even those which have not finished loading
+	 * @param playerId The UUID of the player
+	 */
+	/**
+	 * Removes the player's stable for a stable group without waiting for it to load
+	 * @param playerId The UUID of the player
+	 * @param stableGroup The stable group
+	 * @return The stable if it had finished loading, otherwise null
+	 */
+	public Stable discard(UUID playerId, String stableGroup)
+	{
+		StableLoad load = stables.remove(new StableKey(playerId, stableGroup));
+		
+		return load != null ? load.getNow() : null;
+	}
+	
+	public void discard(UUID playerId)
+	{
+		for (Iterator<StableKey> it = stables.keySet().iterator(); it.hasNext();)
+		{
+			if (it.next().playerId.equals(playerId))
+				it.remove();
+		}
+	}
+	
+	/**
+	 * Fetches every stable which has finished loading<br/>
+	 * 
+	 * The list is a copy so the stables can be saved while the registry changes
+	 * @return Every stable which has finished loading
+	 */
+	public List<Stable> getLoaded()
+	{
+		return getLoaded(null);
+	}
+	
+	/**
+	 * Fetches every one of the player's stables which have finished loading
+	 * @param playerId The UUID of the player, or null for every player
+	 * @return The player's stables
+	 */
+	public List<Stable> getLoaded(UUID playerId)
+	{
+		ArrayList<Stable> loaded = new ArrayList<Stable>();
+		
+		for (StableLoad load : stables.values())
+		{
+			if (playerId != null && !playerId.equals(load.playerId))
+				continue;
+			
+			Stable stable = load.getNow();
+			if (stable != null)
+				loaded.add(stable);
+		}
+		
+		return loaded;
+	}
+	
+	private Stable await(StableLoad load)
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					Stable stable = load.get();
+					
+					// The loader gives up on transient failures, let the next request try again
+					if (stable == null)
+						stables.remove(new StableKey(load.playerId, load.stableGroup), load);
+					
+					return stable;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e)
+		{
+			plugin.severe("Failed to load the player %s's stable", e.getCause(), load.player);
+			
+			// Let the next request try again
+			stables.remove(new StableKey(load.playerId, load.stableGroup), load);
+			return null;
+		}
+		finally
+		{
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Loads stables for the registry
+	 */
+	public interface StableLoader
+	{
+		public Stable load(String player, UUID playerId, String stableGroup);
+		
+		/**
+		 * @return A map of stable groups to the player's stable, groups which failed to load are left out
+		 */
+		public Map<String, Stable> load(String player, UUID playerId, Collection<String> stableGroups);
+	}
+	
+	private class StableLoad extends FutureTask<Stable>
+	{
+		public final String player;
+		public final UUID playerId;
+		public final String stableGroup;
+		
+		public StableLoad(final String player, final UUID playerId, final String stableGroup)
+		{
+			this(player, playerId, stableGroup, new Callable<Stable>()
+			{
+				@Override
+				public Stable call()
+				{
+					return loader.load(player, playerId, stableGroup);
+				}
+			});
+		}
+		
+		public StableLoad(String player, UUID playerId, String stableGroup, Callable<Stable> callable)
+		{
+			super(callable);
+			
+			this.player = player;
+			this.playerId = playerId;
+			this.stableGroup = stableGroup;
+		}
+		
+		/**
+		 * @return The stable if it has finished loading, otherwise null
+		 */
+		public Stable getNow()
+		{
+			if (!isDone())
+				return null;
+			
+			try
+			{
+				return get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			catch (ExecutionException e)
+			{
+				return null;
+			}
+		}
+	}
+	
+	private static class StableKey
+	{
+		public final UUID playerId;
+		public final String stableGroup;
+		
+		public StableKey(UUID playerId, String stableGroup)
+		{
+			this.playerId = playerId;
+			this.stableGroup = stableGroup;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return playerId.hashCode() * 31 + stableGroup.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof StableKey))
+				return false;
+			
+			StableKey other = (StableKey) obj;
+			return playerId.equals(other.playerId) && stableGroup.equals(other.stableGroup);
+		}
+	}
+}
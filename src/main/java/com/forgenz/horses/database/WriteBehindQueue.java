@@ -0,0 +1,423 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.forgenz.horses.PlayerHorse;
+import com.forgenz.horses.Stable;
+
+/**
+ * Queues horse and stable writes so they can be flushed to the database off the main thread<br/>
+ * 
+ * Snapshots of stables and horses are taken on the calling thread when a write is queued.
+ * Repeated writes to the same horse or stable replace the pending snapshot rather than
+ * adding another write. A single writer thread takes every pending write at once and hands
+ * them to the database in bulk.
+ */
+class WriteBehindQueue
+{
+	private final HorseDatabase database;
+	private final int maxPending;
+	
+	private final Object lock = new Object();
+	private final LinkedHashMap<Object, Write> pending = new LinkedHashMap<Object, Write>();
+	private final HashMap<String, Integer> pendingOwners = new HashMap<String, Integer>();
+	
+	private ExecutorService executor;
+	private boolean flushing = false;
+	private boolean closed = false;
+	
+	public WriteBehindQueue(HorseDatabase database, int maxPending)
+	{
+		this.database = database;
+		this.maxPending = Math.max(1, maxPending);
+	}
+	
+	/**
+	 * Queues a write of the horses current state
+	 * @param horse The horse to save
+	 */
+	public void saveHorse(PlayerHorse horse)
+	{
+		if (database.isHorseSavedWithStable())
+		{
+			saveStable(horse.getStable());
+			return;
+		}
+		
+		// Only the horse is copied rather than its whole stable
+		PlayerHorse horseSnapshot = horse.getStable().snapshot(horse);
+		
+		// The horse is no longer part of its stable so there is nothing to save
+		if (horseSnapshot.getStable().getHorseCount() == 0)
+			return;
+		
+		queue(horse, new Write(WriteType.SAVE_HORSE, horseSnapshot.getStable(), horseSnapshot));
+	}
+	
+	/**
+	 * Queues the deletion of a horse<br/>
+	 * 
+	 * The horse should already have been removed from its stable
+	 * @param horse The horse to delete
+	 */
+	public void deleteHorse(PlayerHorse horse)
+	{
+		if (database.isHorseSavedWithStable())
+		{
+			saveStable(horse.getStable());
+			return;
+		}
+		
+		PlayerHorse horseSnapshot = horse.getStable().snapshot(horse);
+		queue(horse, new Write(WriteType.DELETE_HORSE, horseSnapshot.getStable(), horseSnapshot));
+	}
+	
+	/**
+	 * Queues a write of the stables current state
+	 * @param stable The stable to save
+	 */
+	public void saveStable(Stable stable)
+	{
+		queue(stable, new Write(WriteType.SAVE_STABLE, stable.snapshot(), null));
+	}
+	
+	/**
+	 * Queues a write of each stables current state
+	 * @param stables The stables to save
+	 */
+	public void saveStables(List<Stable> stables)
+	{
+		for (Stable stable : stables)
+		{
+			saveStable(stable);
+		}
+	}
+	
+	/**
+	 * Waits until there are no pending writes for the given player
+	 * @param owner The name of the player
+	 */
+	public void await(String owner)
+	{
+		boolean interrupted = false;
+		
+		synchronized (lock)
+		{
+			while (pendingOwners.containsKey(owner))
+			{
+				try
+				{
+					lock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Waits until every pending write has been flushed
+	 */
+	public void flush()
+	{
+		boolean interrupted = false;
+		
+		synchronized (lock)
+		{
+			while (!pendingOwners.isEmpty())
+			{
+				try
+				{
+					lock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Flushes every pending write and stops the writer thread<br/>
+	 * 
+	 * Any writes queued afterwards are run on the calling thread
+	 */
+	public void close()
+	{
+		flush();
+		
+		ExecutorService executor;
+		synchronized (lock)
+		{
+			closed = true;
+			executor = this.executor;
+			this.executor = null;
+		}
+		
+		if (executor == null)
+			return;
+		
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void queue(Object key, Write write)
+	{
+		synchronized (lock)
+		{
+			if (closed)
+			{
+				write.run();
+				return;
+			}
+			
+			Write old = pending.get(key);
+			
+			if (old == null)
+			{
+				// Apply back pressure if the writer can't keep up
+				while (pending.size() >= maxPending && !closed)
+				{
+					try
+					{
+						lock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				
+				addOwner(write.owner);
+			}
+			else if (!old.owner.equals(write.owner))
+			{
+				removeOwner(old.owner);
+				addOwner(write.owner);
+			}
+			
+			// Replacing an existing write keeps its position in the queue
+			pending.put(key, write);
+			
+			if (!flushing)
+			{
+				flushing = true;
+				getExecutor().execute(flushTask);
+			}
+		}
+	}
+	
+	private ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, database.getPlugin().getName() + " Writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return executor;
+	}
+	
+	private final Runnable flushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				ArrayList<Write> writes;
+				
+				synchronized (lock)
+				{
+					if (pending.isEmpty())
+					{
+						flushing = false;
+						return;
+					}
+					
+					writes = new ArrayList<Write>(pending.values());
+					pending.clear();
+					
+					// Wake anyone waiting for space in the queue
+					lock.notifyAll();
+				}
+				
+				try
+				{
+					write(writes);
+				}
+				catch (RuntimeException e)
+				{
+					database.getPlugin().severe("Failed to write %d stable changes to the database", e, writes.size());
+				}
+				finally
+				{
+					synchronized (lock)
+					{
+						for (Write write : writes)
+						{
+							removeOwner(write.owner);
+						}
+						lock.notifyAll();
+					}
+				}
+			}
+		}
+	};
+	
+	/**
+	 * Hands a group of writes to the database<br/>
+	 * 
+	 * Stables are saved before horses so new horses can reference their stable
+	 */
+	private void write(List<Write> writes)
+	{
+		ArrayList<Stable> stables = new ArrayList<Stable>();
+		ArrayList<PlayerHorse> horses = new ArrayList<PlayerHorse>();
+		ArrayList<Write> deletes = new ArrayList<Write>();
+		
+		for (Write write : writes)
+		{
+			switch (write.type)
+			{
+				case SAVE_STABLE:
+					stables.add(write.stable);
+					break;
+				case SAVE_HORSE:
+					horses.add(write.horse);
+					break;
+				case DELETE_HORSE:
+					deletes.add(write);
+					break;
+			}
+		}
+		
+		if (!stables.isEmpty())
+			database.saveStables(stables);
+		
+		if (!horses.isEmpty())
+			database.saveHorses(horses);
+		
+		for (Write delete : deletes)
+		{
+			delete.run();
+		}
+		
+		database.sync();
+	}
+	
+	private void addOwner(String owner)
+	{
+		Integer count = pendingOwners.get(owner);
+		pendingOwners.put(owner, count == null ? 1 : count + 1);
+	}
+	
+	private void removeOwner(String owner)
+	{
+		Integer count = pendingOwners.get(owner);
+		
+		if (count == null || count <= 1)
+			pendingOwners.remove(owner);
+		else
+			pendingOwners.put(owner, count - 1);
+	}
+	
+	private enum WriteType
+	{
+		SAVE_STABLE,
+		SAVE_HORSE,
+		DELETE_HORSE;
+	}
+	
+	private class Write
+	{
+		public final WriteType type;
+		public final String owner;
+		public final Stable stable;
+		public final PlayerHorse horse;
+		
+		public Write(WriteType type, Stable stable, PlayerHorse horse)
+		{
+			this.type = type;
+			this.owner = stable.getOwner();
+			this.stable = stable;
+			this.horse = horse;
+		}
+		
+		public void run()
+		{
+			switch (type)
+			{
+				case SAVE_STABLE:
+					database.saveStable(stable);
+					break;
+				case SAVE_HORSE:
+					database.saveHorseData(horse);
+					break;
+				case DELETE_HORSE:
+					database.deleteHorseData(horse);
+					break;
+			}
+		}
+	}
+}
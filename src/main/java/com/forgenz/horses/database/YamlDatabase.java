@@ -29,15 +29,17 @@
 package com.forgenz.horses.database;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
-import java.util.regex.Pattern;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
@@ -52,140 +54,352 @@ import com.forgenz.horses.HorseType;
 import com.forgenz.horses.Horses;
 import com.forgenz.horses.PlayerHorse;
 import com.forgenz.horses.Stable;
+import com.forgenz.horses.config.HorsesConfig;
 
 public class YamlDatabase extends HorseDatabase
 {
 	private static final String PLAYER_DATA_FOLDER = "playerdata";
-	private static final String PLAYER_DATA_LOCATION = PLAYER_DATA_FOLDER + File.separatorChar + "%s.yml";
-	private static final String GROUPED_PLAYER_DATA_LOCATION = PLAYER_DATA_FOLDER + File.separatorChar + "%s" + File.separatorChar + "%s.yml";
+	
+	private final YamlFileWriter fileWriter;
+	private final PlayerDataIndex index;
+	
+	/** True if new files are written in the sharded layout */
+	private final boolean sharded;
+	/** True if files are named after UUID's, read once so stables can be loaded on any thread */
+	private final boolean onlineMode;
+	private Thread layoutMigration;
+	private volatile boolean closed = false;
 	
 	public YamlDatabase(Horses plugin)
 	{
 		super(plugin, HorseDatabaseStorageType.YAML);
-	}
-	
-	private File getPlayersConfigFile(String player, String stableGroup)
-	{
-		if (stableGroup.equals(HorseDatabase.DEFAULT_GROUP))
-			return new File(getPlugin().getDataFolder(), String.format(PLAYER_DATA_LOCATION, player));
-		else
-			return new File(getPlugin().getDataFolder(), String.format(GROUPED_PLAYER_DATA_LOCATION, stableGroup, player));
-	}
-	
-	private File getPlayersConfigFile(OfflinePlayer player, String stableGroup) {
-		if (!Bukkit.getOnlineMode()) {
-			return this.getPlayersConfigFile(player.getName(), stableGroup);
-		}
 		
-		File uuidFile = this.getPlayersConfigFile(player.getUniqueId().toString(), stableGroup);
+		HorsesConfig cfg = plugin.getHorsesConfig();
+		fileWriter = new YamlFileWriter(plugin, cfg != null ? cfg.saveQueueSize : 1000);
+		index = new PlayerDataIndex(new File(plugin.getDataFolder(), PLAYER_DATA_FOLDER));
+		sharded = cfg != null && cfg.yamlShardedLayout;
+		onlineMode = Bukkit.getOnlineMode();
 		
-		if (uuidFile.exists()) {
-			return uuidFile;
-		}
+		if (sharded)
+			setShardedLayout(true);
 		
-		File nameFile = this.getPlayersConfigFile(player.getName(), stableGroup);
-		
-		if (nameFile.exists()) {
-			// Move file
-			return nameFile.renameTo(uuidFile) ? uuidFile : nameFile;
-		}
-		
-		return uuidFile;
+		startLayoutMigration();
 	}
 	
-	private YamlConfiguration getPlayerConfig(OfflinePlayer player, String stableGroup)
+	@Override
+	public void close()
 	{
-		YamlConfiguration cfg = new YamlConfiguration();
+		super.close();
 		
-		File file = getPlayersConfigFile(player, stableGroup);
-		
-		if (file.exists())
+		// Any files which haven't been moved are moved next time
+		closed = true;
+		if (layoutMigration != null)
 		{
 			try
 			{
-				cfg.load(file);
+				layoutMigration.join();
 			}
-			catch (FileNotFoundException e)
+			catch (InterruptedException e)
 			{
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
 			}
-			catch (IOException e)
+		}
+		
+		fileWriter.close();
+	}
+	
+	/**
+	 * Starts moving files which are not in the configured layout on a background thread<br/>
+	 * 
+	 * The files can still be used while they are being moved
+	 */
+	private synchronized void startLayoutMigration()
+	{
+		if (layoutMigration != null && layoutMigration.isAlive())
+			return;
+		
+		final List<String[]> misplaced = index.getMisplaced(sharded);
+		if (misplaced.isEmpty())
+			return;
+		
+		getPlugin().info("Moving %d player data files to the %s layout", misplaced.size(), sharded ? "sharded" : "flat");
+		
+		layoutMigration = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				e.printStackTrace();
+				migrateLayout(misplaced);
 			}
-			catch (InvalidConfigurationException e)
+		}, getPlugin().getName() + " Layout Migration");
+		layoutMigration.setDaemon(true);
+		layoutMigration.start();
+	}
+	
+	private void migrateLayout(List<String[]> misplaced)
+	{
+		int moved = 0, failed = 0;
+		
+		for (String[] file : misplaced)
+		{
+			if (closed)
+				break;
+			
+			String stableGroup = file[0], player = file[1];
+			
+			// Holding the index stops the file being saved while it is moved
+			synchronized (index)
 			{
-				e.printStackTrace();
+				Boolean layout = index.getLayout(stableGroup, player);
+				
+				// The file has been saved or deleted since the migration started
+				if (layout == null || layout == sharded)
+					continue;
+				
+				File from = index.getFile(stableGroup, player, layout);
+				File to = index.getFile(stableGroup, player, sharded);
+				
+				try
+				{
+					to.getParentFile().mkdirs();
+					Files.move(from.toPath(), to.toPath());
+					
+					index.put(stableGroup, player, sharded);
+					++moved;
+				}
+				catch (IOException e)
+				{
+					getPlugin().severe("Failed to move the player data file %s", e, from.getPath());
+					++failed;
+				}
 			}
 		}
 		
-		return cfg;
+		int remaining = index.getMisplaced(sharded).size();
+		getPlugin().info("Moved %d player data files to the %s layout, %d failed, %d remaining", moved, sharded ? "sharded" : "flat", failed, remaining);
+		
+		// Folders are only read as shards while sharded files may still exist
+		if (!sharded && remaining == 0)
+			setShardedLayout(false);
+	}
+	
+	private void setShardedLayout(boolean shardedLayout)
+	{
+		try
+		{
+			index.setShardedLayout(shardedLayout);
+		}
+		catch (IOException e)
+		{
+			getPlugin().severe("Failed to %s the player data folder as sharded", e, shardedLayout ? "mark" : "unmark");
+		}
+	}
+	
+	@Override
+	protected boolean isHorseSavedWithStable()
+	{
+		return true;
 	}
 	
 	@Override
-	protected List<Stable> loadEverything()
+	protected boolean hasAsyncWriter()
+	{
+		// Files are named and serialised on the main thread, only the file writes are queued
+		return true;
+	}
+	
+	/**
+	 * Fetches the player's data file, which may be in either layout while files are being moved
+	 */
+	private File getPlayersConfigFile(String player, String stableGroup)
 	{
-		File playerDataFolder = new File(getPlugin().getDataFolder(), PLAYER_DATA_FOLDER);
+		Boolean layout = index.getLayout(stableGroup, player);
 		
-		if (!playerDataFolder.isDirectory())
-		{
-			return Collections.emptyList();
+		return index.getFile(stableGroup, player, layout != null ? layout : sharded);
+	}
+	
+	/**
+	 * Finds the name of the player's data file using the index
+	 * @return The player's UUID in online mode, unless their file could not be moved from their name
+	 */
+	/**
+	 * Fetches the name of the player's data file, moving a file named after the player to their UUID<br/>
+	 * 
+	 * Does not use Bukkit so it can be called from any thread
+	 * @param name The name of the player
+	 * @param playerId The UUID of the player, or null if it is not known
+	 */
+	private String getPlayersFileName(String name, UUID playerId, String stableGroup) {
+		if (!onlineMode || playerId == null) {
+			return name;
 		}
 		
-		ArrayList<Stable> stables = new ArrayList<Stable>();
+		String uuid = playerId.toString();
 		
-		loadStableGroup(playerDataFolder, stables, true);
+		if (index.contains(stableGroup, uuid)) {
+			return uuid;
+		}
 		
-		return stables;
+		synchronized (index) {
+			if (name != null && index.contains(stableGroup, name)) {
+				// Move file
+				File uuidFile = index.getFile(stableGroup, uuid, sharded);
+				uuidFile.getParentFile().mkdirs();
+				
+				if (!this.getPlayersConfigFile(name, stableGroup).renameTo(uuidFile)) {
+					return name;
+				}
+				
+				index.remove(stableGroup, name);
+				index.put(stableGroup, uuid, sharded);
+			}
+		}
+		
+		return uuid;
 	}
 	
-	@Override
-	protected void importStables(List<Stable> stables)
+	private YamlConfiguration getPlayerConfig(String player, UUID playerId, String stableGroup)
 	{
-		for (Stable stable : stables)
-			saveStable(stable);
+		return readPlayerConfig(getPlayersFileName(player, playerId, stableGroup), stableGroup);
+	}
+	
+	/**
+	 * Reads and parses a player's data file<br/>
+	 * 
+	 * This does not look up players so it is safe to call from any thread
+	 * @param fileName The name of the file without its extension
+	 */
+	private YamlConfiguration readPlayerConfig(String fileName, String stableGroup)
+	{
+		YamlConfiguration cfg = new YamlConfiguration();
+		
+		try
+		{
+			Boolean layout;
+			while ((layout = index.getLayout(stableGroup, fileName)) != null)
+			{
+				// Files waiting to be written are read from the writer's queue
+				String contents = fileWriter.read(index.getFile(stableGroup, fileName, layout));
+				
+				if (contents != null)
+				{
+					cfg.loadFromString(contents);
+					break;
+				}
+				
+				// Try again if the file was moved to the other layout while we were reading it
+				if (layout.equals(index.getLayout(stableGroup, fileName)))
+					break;
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (InvalidConfigurationException e)
+		{
+			e.printStackTrace();
+		}
+		
+		return cfg;
 	}
 	
-	private void loadStableGroup(File folder, ArrayList<Stable> stables, boolean recursive)
+	@Override
+	protected void loadEverything(StableVisitor visitor)
 	{
-		String groupName = folder.getName().equals(PLAYER_DATA_FOLDER) ? DEFAULT_GROUP : folder.getName();
-		Pattern extentionReplace = Pattern.compile("\\.yml$", Pattern.CASE_INSENSITIVE);
+		int threads = Runtime.getRuntime().availableProcessors();
+		// Only keep a few parsed files waiting at once
+		int maxParsing = threads * 4;
 		
-		File[] fileList = folder.listFiles();
-		// Don't waste time expanding the list
-		stables.ensureCapacity(fileList.length + stables.size());
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		ExecutorCompletionService<ParsedFile> parsed = new ExecutorCompletionService<ParsedFile>(pool);
 		
-		for (File file : fileList)
+		try
 		{
-			// Check for additional stable groups
-			if (file.isDirectory())
+			int parsing = 0;
+			
+			for (String stableGroup : index.getGroups())
 			{
-				// Load the groups stables
-				if (recursive)
-					loadStableGroup(file, stables, false);
-				continue;
+				for (String fileName : index.getPlayers(stableGroup))
+				{
+					if (parsing >= maxParsing)
+					{
+						visitParsed(parsed, visitor);
+						--parsing;
+					}
+					
+					parsed.submit(new ParseTask(fileName, stableGroup));
+					++parsing;
+				}
 			}
 			
-			String playerName = extentionReplace.matcher(file.getName()).replaceAll("");
-			stables.add(loadStable(playerName, groupName));
+			// Visit the remaining files as they finish
+			while (parsing-- > 0)
+			{
+				visitParsed(parsed, visitor);
+			}
 		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Waits for the next file to be parsed and creates its stable on the calling thread<br/>
+	 * 
+	 * Items are only deserialised here as they need Bukkit
+	 */
+	private void visitParsed(ExecutorCompletionService<ParsedFile> parsed, StableVisitor visitor) throws InterruptedException
+	{
+		ParsedFile file;
+		try
+		{
+			file = parsed.take().get();
+		}
+		catch (ExecutionException e)
+		{
+			getPlugin().severe("Failed to read a player data file", e.getCause());
+			return;
+		}
+		
+		Stable stable = new Stable(getPlugin(), file.stableGroup, file.fileName, null);
+		readHorses(stable, file.cfg);
+		
+		visitor.visit(stable);
+	}
+	
+	@Override
+	protected void importStables(List<Stable> stables)
+	{
+		for (Stable stable : stables)
+			saveStable(stable);
 	}
 
 	@Override
-	protected Stable loadStable(String player, String stableGroup)
+	protected Stable loadStable(String player, UUID playerId, String stableGroup)
 	{
-		Stable stable = new Stable(getPlugin(), stableGroup, player);
+		Stable stable = new Stable(getPlugin(), stableGroup, player, playerId);
 		
 		loadHorses(stable, stableGroup);
 		
 		return stable;
 	}
 
-	@Override
-	protected void loadHorses(Stable stable, String stableGroup)
+	private void loadHorses(Stable stable, String stableGroup)
+	{
+		readHorses(stable, getPlayerConfig(stable.getOwner(), stable.getOwnerId(), stableGroup));
+	}
+	
+	/**
+	 * Adds the horses stored in a player's data file to their stable
+	 */
+	private void readHorses(Stable stable, YamlConfiguration cfg)
 	{
-		YamlConfiguration cfg = getPlayerConfig(Bukkit.getOfflinePlayer(stable.getOwner()), stableGroup);
-		
 		ConfigurationSection sect = BukkitConfigUtil.getAndSetConfigurationSection(cfg, "Horses");
 		
 		for (String horse : sect.getKeys(false))
@@ -267,13 +481,18 @@ public class YamlDatabase extends HorseDatabase
 	protected void saveStable(Stable stable)
 	{
 		// Fetch the file to save data to
-		File playerDataFile = getPlayersConfigFile(Bukkit.getOfflinePlayer(stable.getOwner()), stable.getGroup());
+		String fileName = getPlayersFileName(stable.getOwner(), stable.getOwnerId(), stable.getGroup());
 		
 		// Delete the players config file if the player has no horses
 		if (stable.getHorseCount() == 0)
 		{
-			if (playerDataFile.exists())
-				playerDataFile.delete();
+			synchronized (index)
+			{
+				File playerDataFile = getPlayersConfigFile(fileName, stable.getGroup());
+				
+				if (index.remove(stable.getGroup(), fileName))
+					fileWriter.delete(playerDataFile);
+			}
 			return;
 		}
 		
@@ -328,24 +547,30 @@ public class YamlDatabase extends HorseDatabase
 			horseSect.set("inventory", itemList);
 		}
 		
-		try
-		{
-			cfg.save(playerDataFile);
-		}
-		catch (IOException e)
+		String contents = cfg.saveToString();
+		
+		synchronized (index)
 		{
-			e.printStackTrace();
+			// Files are always written in the configured layout, removing the file from the old layout
+			Boolean layout = index.getLayout(stable.getGroup(), fileName);
+			index.put(stable.getGroup(), fileName, sharded);
+			
+			// The file itself is written off the main thread
+			fileWriter.write(index.getFile(stable.getGroup(), fileName, sharded), contents);
+			
+			if (layout != null && layout != sharded)
+				fileWriter.delete(index.getFile(stable.getGroup(), fileName, layout));
 		}
 	}
 
 	@Override
-	public void saveHorse(PlayerHorse horse)
+	protected void saveHorseData(PlayerHorse horse)
 	{
 		saveStable(horse.getStable());
 	}
 
 	@Override
-	public boolean deleteHorse(PlayerHorse horse)
+	protected boolean deleteHorseData(PlayerHorse horse)
 	{
 		saveStable(horse.getStable());
 		return true;
@@ -354,7 +579,18 @@ public class YamlDatabase extends HorseDatabase
 	public boolean migrateToUuidDb() {
 		File dataFolder = new File(super.getPlugin().getDataFolder(), PLAYER_DATA_FOLDER);
 		
-		return migrateFile(dataFolder, true);
+		// Files are renamed directly so make sure every write has reached the disk first
+		fileWriter.flush();
+		
+		boolean success;
+		synchronized (index) {
+			success = migrateFile(dataFolder, true);
+			
+			index.rebuild();
+		}
+		startLayoutMigration();
+		
+		return success;
 	}
 	
 	private boolean migrateFile(File file, boolean top) {
@@ -399,4 +635,39 @@ public class YamlDatabase extends HorseDatabase
 		
 		return file.renameTo(migratedFile);
 	}
+	
+	/**
+	 * Parses a player's data file on one of the loading threads
+	 */
+	private class ParseTask implements Callable<ParsedFile>
+	{
+		private final String fileName;
+		private final String stableGroup;
+		
+		public ParseTask(String fileName, String stableGroup)
+		{
+			this.fileName = fileName;
+			this.stableGroup = stableGroup;
+		}
+		
+		@Override
+		public ParsedFile call()
+		{
+			return new ParsedFile(fileName, stableGroup, readPlayerConfig(fileName, stableGroup));
+		}
+	}
+	
+	private static class ParsedFile
+	{
+		public final String fileName;
+		public final String stableGroup;
+		public final YamlConfiguration cfg;
+		
+		public ParsedFile(String fileName, String stableGroup, YamlConfiguration cfg)
+		{
+			this.fileName = fileName;
+			this.stableGroup = stableGroup;
+			this.cfg = cfg;
+		}
+	}
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.forgenz.horses.Horses;
+
+/**
+ * Writes player data files on a dedicated I/O thread<br/>
+ * 
+ * Files are written to a temporary file, synced to disk and then renamed over the
+ * original so a crash never leaves a half written file behind. Only the latest contents
+ * of each file are kept while it waits to be written, and writes to the same file happen
+ * in the order they were queued. Reads check the queue first so they never see stale data.
+ */
+class YamlFileWriter
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final Horses plugin;
+	private final int maxPending;
+	
+	private final Object lock = new Object();
+	private final LinkedHashMap<File, Contents> pending = new LinkedHashMap<File, Contents>();
+	private final HashMap<File, Contents> writing = new HashMap<File, Contents>();
+	
+	private ExecutorService executor;
+	private boolean flushing = false;
+	private boolean closed = false;
+	
+	public YamlFileWriter(Horses plugin, int maxPending)
+	{
+		this.plugin = plugin;
+		this.maxPending = Math.max(1, maxPending);
+	}
+	
+	/**
+	 * Queues the file to be replaced with the given contents
+	 * @param file The file to write
+	 * @param contents The new contents of the file
+	 */
+	public void write(File file, String contents)
+	{
+		queue(file, new Contents(contents));
+	}
+	
+	/**
+	 * Queues the file to be deleted
+	 * @param file The file to delete
+	 */
+	public void delete(File file)
+	{
+		queue(file, new Contents(null));
+	}
+	
+	/**
+	 * Reads the latest contents of a file, including writes which have not reached the disk
+	 * @param file The file to read
+	 * @return The contents of the file or null if it does not exist
+	 * @throws IOException If the file could not be read
+	 */
+	public String read(File file) throws IOException
+	{
+		synchronized (lock)
+		{
+			Contents contents = pending.get(file);
+			
+			if (contents == null)
+				contents = writing.get(file);
+			
+			if (contents != null)
+				return contents.contents;
+		}
+		
+		if (!file.isFile())
+			return null;
+		
+		return new String(Files.readAllBytes(file.toPath()), UTF8);
+	}
+	
+	/**
+	 * Waits until every queued file has been written
+	 */
+	public void flush()
+	{
+		boolean interrupted = false;
+		
+		synchronized (lock)
+		{
+			while (!pending.isEmpty() || !writing.isEmpty())
+			{
+				try
+				{
+					lock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Writes every queued file and stops the I/O thread<br/>
+	 * 
+	 * Any files queued afterwards are written on the calling thread
+	 */
+	public void close()
+	{
+		flush();
+		
+		ExecutorService executor;
+		synchronized (lock)
+		{
+			closed = true;
+			executor = this.executor;
+			this.executor = null;
+		}
+		
+		if (executor == null)
+			return;
+		
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void queue(File file, Contents contents)
+	{
+		synchronized (lock)
+		{
+			if (closed)
+			{
+				store(file, contents);
+				return;
+			}
+			
+			// Apply back pressure if the disk can't keep up
+			while (!pending.containsKey(file) && pending.size() >= maxPending && !closed)
+			{
+				try
+				{
+					lock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			
+			// Replacing an existing write keeps its position in the queue
+			pending.put(file, contents);
+			
+			if (!flushing)
+			{
+				flushing = true;
+				getExecutor().execute(flushTask);
+			}
+		}
+	}
+	
+	private ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, plugin.getName() + " File Writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return executor;
+	}
+	
+	private final Runnable flushTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				File file;
+				Contents contents;
+				
+				synchronized (lock)
+				{
+					Iterator<Map.Entry<File, Contents>> it = pending.entrySet().iterator();
+					
+					if (!it.hasNext())
+					{
+						flushing = false;
+						return;
+					}
+					
+					Map.Entry<File, Contents> entry = it.next();
+					it.remove();
+					
+					file = entry.getKey();
+					contents = entry.getValue();
+					
+					// Reads see the file as written until it reaches the disk
+					writing.put(file, contents);
+					
+					// Wake anyone waiting for space in the queue
+					lock.notifyAll();
+				}
+				
+				try
+				{
+					store(file, contents);
+				}
+				finally
+				{
+					synchronized (lock)
+					{
+						writing.remove(file);
+						lock.notifyAll();
+					}
+				}
+			}
+		}
+	};
+	
+	private void store(File file, Contents contents)
+	{
+		try
+		{
+			if (contents.contents == null)
+				Files.deleteIfExists(file.toPath());
+			else
+				writeAtomically(file, contents.contents);
+		}
+		catch (IOException e)
+		{
+			plugin.severe("Failed to write the player data file %s", e, file.getPath());
+		}
+	}
+	
+	/**
+	 * Replaces a file by writing a temporary file, syncing it to disk and renaming it over the original
+	 */
+	private static void writeAtomically(File file, String contents) throws IOException
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Failed to create the folder " + parent.getPath());
+		
+		File temp = new File(parent, file.getName() + ".tmp");
+		
+		FileOutputStream out = new FileOutputStream(temp);
+		try
+		{
+			out.write(contents.getBytes(UTF8));
+			out.flush();
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		try
+		{
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * The contents of a queued write, or null contents if the file is to be deleted
+	 */
+	private static class Contents
+	{
+		public final String contents;
+		
+		public Contents(String contents)
+		{
+			this.contents = contents;
+		}
+	}
+}
@@ -81,6 +81,10 @@ public class DamageListener extends ForgeListener
 			return;
 		}
 		
+		// The entity may have been removed without the horse being dismissed
+		if (horseData.removeIfInvalid())
+			return;
+		
 		// Fetch the config
 		Player player = horseData.getStable().getPlayerOwner();
 		
@@ -77,6 +77,10 @@ public class InteractListener extends ForgeListener
 		// Check if the Horse is owned
 		PlayerHorse horseData = PlayerHorse.getFromEntity(horse); 
 		
+		// Dismiss horses whose entity is no longer valid
+		if (horseData != null && horseData.removeIfInvalid())
+			return;
+		
 		// Check how we should handle the event
 		if (horseData != null)
 		{
@@ -30,7 +30,11 @@ package com.forgenz.horses.listeners;
 
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerKickEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerRespawnEvent;
 
@@ -48,6 +52,32 @@ public class PlayerListener extends ForgeListener
 		register();
 	}
 	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event)
+	{
+		if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+			return;
+		
+		// Load the players stable while we are off the main thread
+		getPlugin().getHorseDatabase().preloadStable(event.getName(), event.getUniqueId());
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerLogin(PlayerLoginEvent event)
+	{
+		if (event.getResult() != PlayerLoginEvent.Result.ALLOWED)
+		{
+			getPlugin().getHorseDatabase().discardPreloadedStable(event.getPlayer());
+		}
+	}
+	
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event)
+	{
+		// Hand over the stable which was loaded during login
+		getPlugin().getHorseDatabase().claimPreloadedStable(event.getPlayer());
+	}
+	
 	@EventHandler
 	public void onPlayerRespawn(PlayerRespawnEvent event)
 	{
@@ -82,15 +112,8 @@ public class PlayerListener extends ForgeListener
 	
 	public void handleQuit(Player player)
 	{
-		// Fetch the players stable
-		Stable stable = getPlugin().getHorseDatabase().getPlayersStable(player, false);
-		
-		// Check if the player has a loaded stable
-		if (stable != null)
-		{
-			// Unload the stable
-			getPlugin().getHorseDatabase().unload(stable);
-		}
+		// Unload the stables for every group the player has visited
+		getPlugin().getHorseDatabase().unloadPlayer(player);
 	}
 	
 	@Override
@@ -30,6 +30,7 @@ package com.forgenz.horses.listeners;
 
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
+import org.bukkit.event.player.PlayerPortalEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 
 import com.forgenz.forgecore.v1_0.bukkit.ForgeListener;
@@ -51,6 +52,10 @@ public class TeleportListener extends ForgeListener
 	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
 	public void onPlayerTeleport(PlayerTeleportEvent event)
 	{
+		// Start loading the stable the player will need in the new world
+		if (event.getFrom().getWorld() != event.getTo().getWorld())
+			getPlugin().getHorseDatabase().prefetchStable(event.getPlayer(), event.getTo().getWorld());
+		
 		// Fetch the players stable
 		Stable stable = getPlugin().getHorseDatabase().getPlayersStable(event.getPlayer(), false);
 		
@@ -80,6 +85,17 @@ public class TeleportListener extends ForgeListener
 		}
 	}
 	
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onPlayerPortal(PlayerPortalEvent event)
+	{
+		// The destination is unknown if the portal has no exit
+		if (event.getTo() == null || event.getTo().getWorld() == null)
+			return;
+		
+		if (event.getFrom().getWorld() != event.getTo().getWorld())
+			getPlugin().getHorseDatabase().prefetchStable(event.getPlayer(), event.getTo().getWorld());
+	}
+	
 	@Override
 	public Horses getPlugin()
 	{
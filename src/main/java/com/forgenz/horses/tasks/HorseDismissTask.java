@@ -28,8 +28,10 @@
 
 package com.forgenz.horses.tasks;
 
-import org.bukkit.Bukkit;
+import java.util.concurrent.TimeUnit;
+
 import org.bukkit.Location;
+import org.bukkit.entity.AbstractHorse;
 import org.bukkit.entity.Player;
 import org.bukkit.scheduler.BukkitRunnable;
 
@@ -37,17 +39,28 @@ import com.forgenz.forgecore.v1_0.ForgeCore;
 import com.forgenz.horses.Horses;
 import com.forgenz.horses.Messages;
 import com.forgenz.horses.PlayerHorse;
-import com.forgenz.horses.Stable;
 
 public class HorseDismissTask extends BukkitRunnable implements ForgeCore
 {
+	/** The time the task may spend checking horses each time it runs */
+	private static final long TICK_BUDGET = TimeUnit.MILLISECONDS.toNanos(2);
+	
 	private final Location horseLocCache = new Location(null, 0.0, 0.0, 0.0);
 	private final Location playerLocCache = new Location(null, 0.0, 0.0, 0.0);
 	
 	private final Horses plugin;
-	private Player[] players;
+	private PlayerHorse[] horses;
 	private int index;
 	
+	/** Time spent on the scan in progress */
+	private long scanTime;
+	
+	private long scans = 0;
+	private long totalScanTime = 0;
+	private long maxScanTime = 0;
+	private long horsesChecked = 0;
+	private long horsesDismissed = 0;
+	
 	public HorseDismissTask(Horses plugin)
 	{
 		this.plugin = plugin;
@@ -62,47 +75,96 @@ public class HorseDismissTask extends BukkitRunnable implements ForgeCore
 	@Override
 	public void run()
 	{
-		if (players == null)
+		long start = System.nanoTime();
+		
+		// Only players with a horse out need checking
+		if (horses == null)
 		{
-			players = Bukkit.getOnlinePlayers().toArray(new Player[Bukkit.getOnlinePlayers().size()]);
+			horses = PlayerHorse.getActiveHorses().toArray(new PlayerHorse[0]);
 			index = 0;
+			scanTime = 0;
 		}
 		
-		long start = System.currentTimeMillis();
-		
-		while (index < players.length && System.currentTimeMillis() - start <= 2)
+		while (index < horses.length && System.nanoTime() - start <= TICK_BUDGET)
 		{
-			Player player = players[index++];
+			PlayerHorse horseData = horses[index++];
+			++horsesChecked;
 			
-			if (!player.isValid())
+			// Horses whose entity was lost without being dismissed are dropped from the registry
+			if (horseData.removeIfInvalid())
+			{
+				++horsesDismissed;
 				continue;
+			}
 			
-			Stable stable = getPlugin().getHorseDatabase().getPlayersStable(player, false);
-			
-			if (stable == null)
+			AbstractHorse horse = horseData.getHorse();
+			if (horse == null)
 				continue;
 			
-			PlayerHorse horseData = stable.getActiveHorse();
+			Player player = horseData.getStable().getPlayerOwner();
 			
-			if (horseData == null)
+			if (player == null || !player.isValid())
 				continue;
 			
-			if (horseData.getHorse().getWorld() != player.getWorld())
+			if (horse.getWorld() != player.getWorld())
 			{
 				horseData.removeHorse();
+				++horsesDismissed;
 				continue;
 			}
 			
-			if (horseData.getHorse().getLocation(horseLocCache).distanceSquared(player.getLocation(playerLocCache)) > 1024)
+			if (horse.getLocation(horseLocCache).distanceSquared(player.getLocation(playerLocCache)) > 1024)
 			{
 				Messages.Event_MovedTooFarAway.sendMessage(player, horseData.getDisplayName());
 				horseData.removeHorse();
+				++horsesDismissed;
 			}
 		}
 		
-		if (players.length == index)
+		scanTime += System.nanoTime() - start;
+		
+		if (horses.length == index)
 		{
-			players = null;
+			horses = null;
+			
+			++scans;
+			totalScanTime += scanTime;
+			if (scanTime > maxScanTime)
+				maxScanTime = scanTime;
 		}
 	}
+	
+	/**
+	 * @return The number of times every active horse has been checked
+	 */
+	public long getScans()
+	{
+		return scans;
+	}
+	
+	/**
+	 * @return The average time taken to check every active horse in nanoseconds
+	 */
+	public long getAverageScanTime()
+	{
+		return scans == 0 ? 0 : totalScanTime / scans;
+	}
+	
+	/**
+	 * @return The longest time taken to check every active horse in nanoseconds
+	 */
+	public long getMaxScanTime()
+	{
+		return maxScanTime;
+	}
+	
+	public long getHorsesChecked()
+	{
+		return horsesChecked;
+	}
+	
+	public long getHorsesDismissed()
+	{
+		return horsesDismissed;
+	}
 }
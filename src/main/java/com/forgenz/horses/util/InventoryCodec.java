@@ -0,0 +1,468 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Encodes horse inventories into a compact binary format<br/>
+ * 
+ * Items are stored as the values returned by {@link ItemStack#serialize()} using small
+ * type tags, with each distinct string only written once. Larger inventories are deflated.
+ * Encoded inventories start with a zero byte so they can be told apart from the YAML
+ * strings inventories were stored as before.<br/>
+ * 
+ * Every method is safe to call from any thread.
+ */
+public final class InventoryCodec
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final byte MARKER = 0;
+	private static final byte VERSION = 1;
+	
+	private static final byte FLAG_DEFLATED = 1;
+	/** Inventories smaller than this are not worth deflating */
+	private static final int DEFLATE_THRESHOLD = 128;
+	
+	/** Stops corrupt sizes from allocating huge lists before the data runs out */
+	private static final int MAX_INITIAL_CAPACITY = 64;
+	
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_INT = 2;
+	private static final byte TAG_LONG = 3;
+	private static final byte TAG_FLOAT = 4;
+	private static final byte TAG_DOUBLE = 5;
+	private static final byte TAG_TRUE = 6;
+	private static final byte TAG_FALSE = 7;
+	private static final byte TAG_LIST = 8;
+	private static final byte TAG_MAP = 9;
+	private static final byte TAG_SERIALIZABLE = 10;
+	
+	private InventoryCodec()
+	{
+	}
+	
+	/**
+	 * @param data Data from the database
+	 * @return True if the data was encoded by this codec, false if it is a legacy YAML string
+	 */
+	public static boolean isEncoded(byte[] data)
+	{
+		return data.length >= 3 && data[0] == MARKER;
+	}
+	
+	/**
+	 * Encodes the items in an inventory
+	 * @param items The inventory contents, which can contain nulls
+	 * @return The encoded inventory
+	 * @throws IOException If an item contains a value which can't be encoded
+	 */
+	public static byte[] encode(ItemStack[] items) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Encoder encoder = new Encoder(new DataOutputStream(body));
+		
+		int count = 0;
+		for (ItemStack item : items)
+		{
+			if (item != null)
+				++count;
+		}
+		
+		encoder.writeVarInt(count);
+		for (int slot = 0; slot < items.length; ++slot)
+		{
+			if (items[slot] == null)
+				continue;
+			
+			encoder.writeVarInt(slot);
+			encoder.writeMap(items[slot].serialize());
+		}
+		
+		byte flags = 0;
+		byte[] bytes = body.toByteArray();
+		
+		if (bytes.length >= DEFLATE_THRESHOLD)
+		{
+			byte[] deflated = deflate(bytes);
+			if (deflated.length < bytes.length)
+			{
+				flags |= FLAG_DEFLATED;
+				bytes = deflated;
+			}
+		}
+		
+		byte[] data = new byte[3 + bytes.length];
+		data[0] = MARKER;
+		data[1] = VERSION;
+		data[2] = flags;
+		System.arraycopy(bytes, 0, data, 3, bytes.length);
+		
+		return data;
+	}
+	
+	/**
+	 * Decodes an inventory created by {@link #encode(ItemStack[])}
+	 * @param data The encoded inventory
+	 * @return The inventory contents, with nulls in empty slots
+	 * @throws IOException If the data is corrupt
+	 */
+	public static ItemStack[] decode(byte[] data) throws IOException
+	{
+		if (!isEncoded(data))
+			throw new IOException("The data is not an encoded inventory");
+		if (data[1] != VERSION)
+			throw new IOException("Unsupported inventory version " + data[1]);
+		
+		InputStream in = new ByteArrayInputStream(data, 3, data.length - 3);
+		if ((data[2] & FLAG_DEFLATED) != 0)
+			in = new InflaterInputStream(in);
+		
+		Decoder decoder = new Decoder(new DataInputStream(in));
+		
+		int count = decoder.readVarInt();
+		ArrayList<ItemStack> items = new ArrayList<ItemStack>(Math.min(count, MAX_INITIAL_CAPACITY));
+		
+		for (int i = 0; i < count; ++i)
+		{
+			int slot = decoder.readVarInt();
+			if (slot < 0)
+				throw new IOException("Invalid inventory slot " + slot);
+			Map<String, Object> itemMap = decoder.readMap();
+			
+			ItemStack item;
+			try
+			{
+				item = ItemStack.deserialize(itemMap);
+			}
+			catch (RuntimeException e)
+			{
+				throw new IOException("Failed to deserialise the item in slot " + slot, e);
+			}
+			
+			// Fill in the gaps with nothing
+			while (items.size() <= slot)
+				items.add(null);
+			
+			items.set(slot, item);
+		}
+		
+		return items.toArray(new ItemStack[items.size()]);
+	}
+	
+	private static byte[] deflate(byte[] bytes) throws IOException
+	{
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		
+		try
+		{
+			DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater);
+			out.write(bytes);
+			out.finish();
+		}
+		finally
+		{
+			deflater.end();
+		}
+		
+		return deflated.toByteArray();
+	}
+	
+	private static class Encoder
+	{
+		private final DataOutputStream out;
+		private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+		
+		public Encoder(DataOutputStream out)
+		{
+			this.out = out;
+		}
+		
+		public void writeValue(Object value) throws IOException
+		{
+			if (value == null)
+			{
+				out.writeByte(TAG_NULL);
+			}
+			else if (value instanceof String)
+			{
+				out.writeByte(TAG_STRING);
+				writeString((String) value);
+			}
+			else if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			{
+				out.writeByte(TAG_INT);
+				writeVarLong(((Number) value).intValue());
+			}
+			else if (value instanceof Long)
+			{
+				out.writeByte(TAG_LONG);
+				writeVarLong((Long) value);
+			}
+			else if (value instanceof Float)
+			{
+				out.writeByte(TAG_FLOAT);
+				out.writeFloat((Float) value);
+			}
+			else if (value instanceof Double)
+			{
+				out.writeByte(TAG_DOUBLE);
+				out.writeDouble((Double) value);
+			}
+			else if (value instanceof Boolean)
+			{
+				out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+			}
+			else if (value instanceof Collection)
+			{
+				Collection<?> list = (Collection<?>) value;
+				
+				out.writeByte(TAG_LIST);
+				writeVarInt(list.size());
+				for (Object element : list)
+					writeValue(element);
+			}
+			else if (value instanceof Map)
+			{
+				out.writeByte(TAG_MAP);
+				writeMap((Map<?, ?>) value);
+			}
+			else if (value instanceof ConfigurationSerializable)
+			{
+				ConfigurationSerializable serializable = (ConfigurationSerializable) value;
+				
+				out.writeByte(TAG_SERIALIZABLE);
+				writeString(ConfigurationSerialization.getAlias(serializable.getClass()));
+				writeMap(serializable.serialize());
+			}
+			else
+			{
+				throw new IOException("Can not encode a value of type " + value.getClass().getName());
+			}
+		}
+		
+		public void writeMap(Map<?, ?> map) throws IOException
+		{
+			writeVarInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet())
+			{
+				writeString(String.valueOf(entry.getKey()));
+				writeValue(entry.getValue());
+			}
+		}
+		
+		/**
+		 * Writes a string the first time it is used, then refers back to it
+		 */
+		private void writeString(String str) throws IOException
+		{
+			Integer index = strings.get(str);
+			if (index != null)
+			{
+				writeVarInt(index + 1);
+				return;
+			}
+			
+			strings.put(str, strings.size());
+			
+			byte[] bytes = str.getBytes(UTF8);
+			writeVarInt(0);
+			writeVarInt(bytes.length);
+			out.write(bytes);
+		}
+		
+		public void writeVarInt(int value) throws IOException
+		{
+			while ((value & ~0x7F) != 0)
+			{
+				out.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+		
+		/**
+		 * Writes a signed number using ZigZag encoding so small negative numbers stay small
+		 */
+		private void writeVarLong(long value) throws IOException
+		{
+			value = (value << 1) ^ (value >> 63);
+			while ((value & ~0x7FL) != 0)
+			{
+				out.writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.writeByte((int) value);
+		}
+	}
+	
+	private static class Decoder
+	{
+		private final DataInputStream in;
+		private final List<String> strings = new ArrayList<String>();
+		
+		public Decoder(DataInputStream in)
+		{
+			this.in = in;
+		}
+		
+		public Object readValue() throws IOException
+		{
+			byte tag = in.readByte();
+			
+			switch (tag)
+			{
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return readString();
+			case TAG_INT:
+				return (int) readVarLong();
+			case TAG_LONG:
+				return readVarLong();
+			case TAG_FLOAT:
+				return in.readFloat();
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_TRUE:
+				return true;
+			case TAG_FALSE:
+				return false;
+			case TAG_LIST:
+				int size = readVarInt();
+				ArrayList<Object> list = new ArrayList<Object>(Math.min(size, MAX_INITIAL_CAPACITY));
+				for (int i = 0; i < size; ++i)
+					list.add(readValue());
+				return list;
+			case TAG_MAP:
+				return readMap();
+			case TAG_SERIALIZABLE:
+				String alias = readString();
+				Map<String, Object> map = readMap();
+				// Deserialised in the same way YAML deserialises them
+				map.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+				
+				try
+				{
+					return ConfigurationSerialization.deserializeObject(map);
+				}
+				catch (RuntimeException e)
+				{
+					throw new IOException("Failed to deserialise a value of type " + alias, e);
+				}
+			default:
+				throw new IOException("Unknown value tag " + tag);
+			}
+		}
+		
+		public Map<String, Object> readMap() throws IOException
+		{
+			int size = readVarInt();
+			LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+			
+			for (int i = 0; i < size; ++i)
+			{
+				String key = readString();
+				map.put(key, readValue());
+			}
+			
+			return map;
+		}
+		
+		private String readString() throws IOException
+		{
+			int index = readVarInt();
+			if (index > 0)
+			{
+				if (index > strings.size())
+					throw new IOException("Invalid string reference " + index);
+				return strings.get(index - 1);
+			}
+			
+			int length = readVarInt();
+			if (length < 0)
+				throw new IOException("Invalid string length " + length);
+			
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			
+			String str = new String(bytes, UTF8);
+			strings.add(str);
+			return str;
+		}
+		
+		public int readVarInt() throws IOException
+		{
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7)
+			{
+				int b = in.readUnsignedByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Malformed variable length number");
+		}
+		
+		private long readVarLong() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 70; shift += 7)
+			{
+				int b = in.readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return (value >>> 1) ^ -(value & 1);
+			}
+			throw new IOException("Malformed variable length number");
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 Michael McKnight. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of
+ *       conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list
+ *       of conditions and the following disclaimer in the documentation and/or other materials
+ *       provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ''AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE AUTHOR OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation are those of the
+ * authors and contributors and should not be interpreted as representing official policies,
+ * either expressed or implied, of anybody else.
+ */
+
+package com.forgenz.horses;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class NameIndexTest
+{
+	@Test
+	public void testExactMatchIgnoresCase()
+	{
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		Horse bob = add(index, "Bob");
+		add(index, "Bobby");
+		
+		assertSame(bob, index.find("bob", true));
+		assertSame(bob, index.find("BOB", false));
+		assertNull(index.find("bo", true));
+	}
+	
+	@Test
+	public void testPrefixMatchPrefersFirstAdded()
+	{
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		add(index, "Zed");
+		Horse storm = add(index, "Storm");
+		add(index, "Stardust");
+		add(index, "Sky");
+		
+		assertSame(storm, index.find("s", false));
+		assertSame(storm, index.find("ST", false));
+		assertNull(index.find("x", false));
+	}
+	
+	@Test
+	public void testExactMatchBeatsPrefixMatch()
+	{
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		add(index, "Maxine");
+		Horse max = add(index, "max");
+		
+		assertSame(max, index.find("Max", false));
+	}
+	
+	@Test
+	public void testRenameKeepsOrder()
+	{
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		Horse first = add(index, "Alpha");
+		Horse second = add(index, "Beta");
+		
+		rename(index, first, "Bravo");
+		
+		assertNull(index.find("alpha", false));
+		assertSame(first, index.find("bravo", true));
+		assertSame(first, index.find("b", false));
+		
+		rename(index, second, "Bravo");
+		assertSame(first, index.find("bravo", true));
+	}
+	
+	@Test
+	public void testRemove()
+	{
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		Horse first = add(index, "Pepper");
+		Horse second = add(index, "pepper");
+		
+		assertSame(first, index.find("pepper", true));
+		index.remove(first.name, first);
+		assertSame(second, index.find("PEPPER", true));
+		index.remove(second.name, second);
+		assertNull(index.find("pep", false));
+	}
+	
+	@Test
+	public void testRestoreKeepsOrder()
+	{
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		Horse first = add(index, "Storm");
+		add(index, "Stardust");
+		
+		long order = index.remove(first.name, first);
+		assertNull(index.find("storm", true));
+		
+		index.restore(first.name, first, order);
+		assertSame(first, index.find("st", false));
+	}
+	
+	/**
+	 * Checks the index against the linear scan Stable.findHorse used before the index
+	 */
+	@Test
+	public void testMatchesLinearScan()
+	{
+		Random random = new Random(42);
+		NameIndex<Horse> index = new NameIndex<Horse>();
+		List<Horse> horses = new ArrayList<Horse>();
+		
+		for (int i = 0; i < 5000; ++i)
+		{
+			int action = random.nextInt(10);
+			
+			if (action < 5 || horses.isEmpty())
+			{
+				Horse horse = new Horse(randomName(random));
+				horses.add(horse);
+				index.add(horse.name, horse);
+			}
+			else if (action < 7)
+			{
+				Horse horse = horses.remove(random.nextInt(horses.size()));
+				index.remove(horse.name, horse);
+			}
+			else
+			{
+				rename(index, horses.get(random.nextInt(horses.size())), randomName(random));
+			}
+			
+			String query = randomName(random);
+			query = query.substring(0, 1 + random.nextInt(query.length()));
+			
+			assertSame(query, linearScan(horses, query, true), index.find(query, true));
+			assertSame(query, linearScan(horses, query, false), index.find(query, false));
+		}
+	}
+	
+	private static Horse add(NameIndex<Horse> index, String name)
+	{
+		Horse horse = new Horse(name);
+		index.add(name, horse);
+		return horse;
+	}
+	
+	private static void rename(NameIndex<Horse> index, Horse horse, String name)
+	{
+		String oldName = horse.name;
+		horse.name = name;
+		index.rename(horse, oldName, name);
+	}
+	
+	private static String randomName(Random random)
+	{
+		char[] name = new char[1 + random.nextInt(5)];
+		for (int i = 0; i < name.length; ++i)
+		{
+			// A small alphabet of mixed case letters gives plenty of shared prefixes
+			char c = (char) ('a' + random.nextInt(4));
+			name[i] = random.nextBoolean() ? Character.toUpperCase(c) : c;
+		}
+		return new String(name);
+	}
+	
+	/**
+	 * The lookup Stable.findHorse performed before the name index was added
+	 */
+	private static Horse linearScan(List<Horse> horses, String name, boolean exact)
+	{
+		Horse bestMatch = null;
+		
+		Iterator<Horse> it = horses.iterator();
+		
+		name = name.toLowerCase();
+		int length = 0;
+		boolean startsWith = false;
+		
+		while (it.hasNext())
+		{
+			Horse horse = it.next();
+			
+			String horseName = horse.name.toLowerCase();
+			
+			if (horseName.equals(name))
+				return horse;
+			else if (exact)
+				continue;
+			else if (horseName.startsWith(name))
+			{
+				if (length < name.length())
+				{
+					length = name.length();
+					bestMatch = horse;
+					startsWith = true;
+				}
+			}
+			else if (!startsWith && bestMatch != null && horseName.contains(name))
+				bestMatch = horse;
+		}
+		
+		return bestMatch;
+	}
+	
+	private static class Horse
+	{
+		private String name;
+		
+		public Horse(String name)
+		{
+			this.name = name;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+}